@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.utilities.BenchmarkCsv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Imports the {@link BenchmarkCsv} both the way the import used to, one ContentValues insert per
+ * row, and through {@link ExternalSQLiteOpenHelper}, and logs how long each took.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ExternalSQLiteOpenHelperBenchmark {
+    private static final String t = "ExternalImportBenchmark";
+
+    private File mDir;
+    private File mCsv;
+    private File mDb;
+    private File mPerRowDb;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "import-bench");
+        assertTrue(mDir.isDirectory() || mDir.mkdirs());
+        mCsv = new File(mDir, "synthetic.csv");
+        mDb = new File(mDir, "synthetic.db");
+        mPerRowDb = new File(mDir, "synthetic-per-row.db");
+        SQLiteDatabase.deleteDatabase(mDb);
+        SQLiteDatabase.deleteDatabase(mPerRowDb);
+
+        BenchmarkCsv.write(mCsv);
+    }
+
+    @After
+    public void tearDown() {
+        SQLiteDatabase.deleteDatabase(mDb);
+        SQLiteDatabase.deleteDatabase(mPerRowDb);
+        assertTrue(mCsv.delete());
+    }
+
+    @Test
+    public void compareWithPerRowImport() throws IOException {
+        long start = System.currentTimeMillis();
+        importPerRow();
+        long perRowMillis = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        new ExternalSQLiteOpenHelper(mDb).importFromCSV(mCsv, null, null);
+        long bulkMillis = System.currentTimeMillis() - start;
+
+        Log.i(t, "Imported " + BenchmarkCsv.ROWS + " rows (" + mCsv.length()
+                + " bytes): per row " + perRowMillis + " ms, bulk " + bulkMillis + " ms");
+        assertEquals(BenchmarkCsv.ROWS, countRows(mPerRowDb));
+
+        assertFalse(new File(mDir, mDb.getName() + ".importing").exists());
+
+        assertEquals(BenchmarkCsv.ROWS, countRows(mDb));
+
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(mDb.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index'", null);
+            try {
+                assertTrue(c.getCount() > 0);
+            } finally {
+                c.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Imports the csv the way the import used to: in the single transaction of the helper's
+     * onCreate, with default journaling and a new ContentValues for every row, building the
+     * _key indexes at the end.
+     */
+    private void importPerRow() throws IOException {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mPerRowDb, null);
+        CSVReader reader = new CSVReader(new InputStreamReader(new FileInputStream(mCsv),
+                "UTF-8"), ',', '"', '\0');
+        try {
+            db.beginTransaction();
+            String tableName = ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME;
+            Map<String, String> columnNamesCache = new HashMap<String, String>();
+            String[] headerRow = reader.readNext();
+
+            StringBuilder sb = new StringBuilder("CREATE TABLE ").append(tableName).append(" (");
+            for (String header : headerRow) {
+                sb.append(ExternalDataUtil.toSafeColumnName(header.trim(), columnNamesCache))
+                        .append(" text collate nocase, ");
+            }
+            sb.append(ExternalDataUtil.SORT_COLUMN_NAME).append(" real);");
+            db.execSQL(sb.toString());
+
+            String[] row;
+            int rowCount = 0;
+            while ((row = reader.readNext()) != null) {
+                ContentValues values = new ContentValues();
+                values.put(ExternalDataUtil.SORT_COLUMN_NAME, rowCount + 1);
+                for (int i = 0; i < headerRow.length; i++) {
+                    // short rows were filled up with ""
+                    values.put(ExternalDataUtil.toSafeColumnName(headerRow[i].trim(),
+                            columnNamesCache), i < row.length ? row[i] : "");
+                }
+                db.insertOrThrow(tableName, null, values);
+                rowCount++;
+            }
+
+            for (String header : headerRow) {
+                if (header.endsWith("_key")) {
+                    db.execSQL("CREATE INDEX " + header + "_idx ON " + tableName + " ("
+                            + ExternalDataUtil.toSafeColumnName(header, columnNamesCache) + ");");
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            if (db.inTransaction()) {
+                db.endTransaction();
+            }
+            reader.close();
+            db.close();
+        }
+    }
+
+    private static int countRows(File dbFile) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(dbFile.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            Cursor c = db.rawQuery("SELECT COUNT(*) FROM "
+                    + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, null);
+            try {
+                assertTrue(c.moveToFirst());
+                return c.getInt(0);
+            } finally {
+                c.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * The synthetic csv the csv benchmarks read, the size of a large pulldata() or search() dataset.
+ * Its labels are quoted, with commas and escaped quotes in them, and every tenth row is short, as
+ * the import has to fill those up.
+ */
+public final class BenchmarkCsv {
+
+    public static final int ROWS = 500000;
+    public static final int COLUMNS = 5;
+
+    private BenchmarkCsv() {
+    }
+
+    public static void write(File csv) throws IOException {
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(csv), "UTF-8"));
+        try {
+            writer.write("name,label,name_key,region,population\n");
+            for (int i = 0; i < ROWS; i++) {
+                writer.write("n" + i + ",\"Label, \"\"number\"\" " + i + "\",k" + (i % 1000)
+                        + (i % 10 == 0 ? "" : ",r" + (i % 37) + "," + (i * 7 % 100000)) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.external.ExternalDataUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads the {@link BenchmarkCsv} the way the external data import used to, with
+ * opencsv, and with {@link CsvTokenizer}, and logs how long each took. Only the parsing is timed;
+ * the fields are handed to a checksum instead of a database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CsvTokenizerBenchmark {
+    private static final String t = "CsvTokenizerBenchmark";
+
+    private File mCsv;
+
+    @Before
+    public void setUp() throws IOException {
+        File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+        mCsv = new File(dir, "tokenizer-bench.csv");
+        BenchmarkCsv.write(mCsv);
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(mCsv.delete());
+    }
+
+    @Test
+    public void compareWithOpencsv() throws IOException {
+        // once each to warm up, then timed
+        readWithOpencsv();
+        readWithTokenizer();
+
+        long start = System.currentTimeMillis();
+        long opencsvChecksum = readWithOpencsv();
+        long opencsvMillis = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        long tokenizerChecksum = readWithTokenizer();
+        long tokenizerMillis = System.currentTimeMillis() - start;
+
+        Log.i(t, "Read " + BenchmarkCsv.ROWS + " rows (" + mCsv.length() + " bytes): opencsv "
+                + opencsvMillis + " ms, tokenizer " + tokenizerMillis + " ms");
+        assertEquals(opencsvChecksum, tokenizerChecksum);
+    }
+
+    private long readWithOpencsv() throws IOException {
+        long checksum = 0;
+        CSVReader reader = new CSVReader(new InputStreamReader(new FileInputStream(mCsv),
+                "UTF-8"), ',', '"', '\0');
+        try {
+            String[] headerRow = reader.readNext();
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                if (!ExternalDataUtil.containsAnyData(row)) {
+                    continue;
+                }
+                for (int i = 0; i < headerRow.length; i++) {
+                    // the import filled short rows up with ""
+                    String value = i < row.length && row[i] != null ? row[i] : "";
+                    checksum = checksum * 31 + value.hashCode();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return checksum;
+    }
+
+    private long readWithTokenizer() throws IOException {
+        long checksum = 0;
+        CsvTokenizer reader = new CsvTokenizer(new InputStreamReader(new FileInputStream(mCsv),
+                "UTF-8"), ',', '"', '\0');
+        try {
+            assertTrue(reader.next());
+            assertEquals(BenchmarkCsv.COLUMNS, reader.getFieldCount());
+            while (reader.next()) {
+                if (!reader.containsAnyData()) {
+                    continue;
+                }
+                for (int i = 0; i < BenchmarkCsv.COLUMNS; i++) {
+                    checksum = checksum * 31 + reader.getField(i).hashCode();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return checksum;
+    }
+}
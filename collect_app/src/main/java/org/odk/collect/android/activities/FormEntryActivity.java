@@ -70,6 +70,7 @@ import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.FormsDao;
 import org.odk.collect.android.dao.InstancesDao;
+import org.odk.collect.android.database.FinalizeQueue;
 import org.odk.collect.android.exception.GDriveConnectionException;
 import org.odk.collect.android.exception.JavaRosaException;
 import org.odk.collect.android.listeners.AdvanceToNextListener;
@@ -86,7 +87,8 @@ import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 import org.odk.collect.android.tasks.FormLoaderTask;
-import org.odk.collect.android.tasks.SavePointTask;
+import org.odk.collect.android.tasks.SavePointJournal;
+import org.odk.collect.android.tasks.SavePointScheduler;
 import org.odk.collect.android.tasks.SaveResult;
 import org.odk.collect.android.tasks.SaveToDiskTask;
 import org.odk.collect.android.utilities.ApplicationConstants;
@@ -236,6 +238,8 @@ public class FormEntryActivity extends Activity implements AnimationListener,
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        SavePointScheduler.getInstance().setListener(this);
+
         // must be at the beginning of any activity that can be called from an
         // external intent
         try {
@@ -378,6 +382,14 @@ public class FormEntryActivity extends Activity implements AnimationListener,
                                         .logAction(this, "instanceLoaded",
                                                 instancePath);
 
+                                // its submission is still being packaged in the background
+                                if (FinalizeQueue.getInstance().isQueued(
+                                        new File(instancePath))) {
+                                    this.createErrorDialog(
+                                            getString(R.string.finalize_in_progress), EXIT);
+                                    return;
+                                }
+
                                 jrFormId = instanceCursor
                                         .getString(instanceCursor
                                                 .getColumnIndex(InstanceColumns.JR_FORM_ID));
@@ -533,15 +545,10 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 
     /**
      * Create save-points asynchronously in order to not affect swiping performance
-     * on larger forms.
+     * on larger forms. Requests made while swiping quickly are coalesced into one.
      */
     private void nonblockingCreateSavePointData() {
-        try {
-            SavePointTask savePointTask = new SavePointTask(this);
-            savePointTask.execute();
-        } catch (Exception e) {
-            Log.e(t, "Could not schedule SavePointTask. Perhaps a lot of swiping is taking place?");
-        }
+        SavePointScheduler.getInstance().schedule();
     }
 
     @Override
@@ -561,7 +568,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
                         formController.getXPath(waiting));
             }
             // save the instance to a temp path...
-            nonblockingCreateSavePointData();
+            SavePointScheduler.getInstance().saveNow();
         }
         outState.putBoolean(NEWFORM, false);
         outState.putString(KEY_ERROR, mErrorMessage);
@@ -1846,6 +1853,9 @@ public class FormEntryActivity extends Activity implements AnimationListener,
             }
         }
 
+        // the save replaces any savepoint that is still waiting to be written
+        SavePointScheduler.getInstance().cancel();
+
         synchronized (saveDialogLock) {
             mSaveToDiskTask = new SaveToDiskTask(getIntent().getData(), exit, complete,
                     updatedSaveName);
@@ -1967,22 +1977,36 @@ public class FormEntryActivity extends Activity implements AnimationListener,
      * exit'
      */
     private void removeTempInstance() {
-        FormController formController = Collect.getInstance()
-                .getFormController();
+        final File instancePath = Collect.getInstance().getFormController().getInstancePath();
 
+        // don't let a pending savepoint bring the scratch files back. One that is being written
+        // can't be stopped, so the files are deleted on the savepoint writer once it is done
+        SavePointScheduler.getInstance().cancel();
+        SavePointScheduler.getInstance().runAfterWrites(new Runnable() {
+            @Override
+            public void run() {
+                deleteTempInstance(instancePath);
+            }
+        });
+    }
+
+    private static void deleteTempInstance(File instancePath) {
         // attempt to remove any scratch file
-        File temp = SaveToDiskTask.savepointFile(formController
-                .getInstancePath());
+        File temp = SaveToDiskTask.savepointFile(instancePath);
         if (temp.exists()) {
             temp.delete();
         }
+        File journal = SavePointJournal.journalFile(instancePath);
+        if (journal.exists()) {
+            journal.delete();
+        }
 
         boolean erase = false;
         {
             Cursor c = null;
             try {
-                c = new InstancesDao().getInstancesCursorForFilePath(formController.getInstancePath()
-                        .getAbsolutePath());
+                c = new InstancesDao().getInstancesCursorForFilePath(
+                        instancePath.getAbsolutePath());
                 erase = (c.getCount() < 1);
             } finally {
                 if (c != null) {
@@ -1994,18 +2018,14 @@ public class FormEntryActivity extends Activity implements AnimationListener,
         // if it's not already saved, erase everything
         if (erase) {
             // delete media first
-            String instanceFolder = formController.getInstancePath()
-                    .getParent();
+            String instanceFolder = instancePath.getParent();
             Log.i(t, "attempting to delete: " + instanceFolder);
             int images = MediaUtils
-                    .deleteImagesInFolderFromMediaProvider(formController
-                            .getInstancePath().getParentFile());
+                    .deleteImagesInFolderFromMediaProvider(instancePath.getParentFile());
             int audio = MediaUtils
-                    .deleteAudioInFolderFromMediaProvider(formController
-                            .getInstancePath().getParentFile());
+                    .deleteAudioInFolderFromMediaProvider(instancePath.getParentFile());
             int video = MediaUtils
-                    .deleteVideoInFolderFromMediaProvider(formController
-                            .getInstancePath().getParentFile());
+                    .deleteVideoInFolderFromMediaProvider(instancePath.getParentFile());
 
             Log.i(t, "removed from content providers: " + images
                     + " image files, " + audio + " audio files," + " and "
@@ -2396,6 +2416,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
                 mSaveToDiskTask = null;
             }
         }
+        SavePointScheduler.getInstance().removeListener(this);
 
         super.onDestroy();
 
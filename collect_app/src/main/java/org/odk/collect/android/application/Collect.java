@@ -29,12 +29,16 @@ import com.google.android.gms.analytics.Tracker;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.database.ActivityLogger;
+import org.odk.collect.android.database.ItemsetCache;
+import org.odk.collect.android.database.ItemsetDbAdapter;
 import org.odk.collect.android.external.ExternalDataManager;
 import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.logic.PropertyManager;
 import org.odk.collect.android.preferences.PreferenceKeys;
+import org.odk.collect.android.services.FinalizeService;
 import org.odk.collect.android.utilities.AgingCredentialsProvider;
 import org.odk.collect.android.utilities.AuthDialogUtility;
+import org.odk.collect.android.utilities.FormDefCache;
 import org.odk.collect.android.utilities.PRNGFixes;
 import org.opendatakit.httpclientandroidlib.client.CookieStore;
 import org.opendatakit.httpclientandroidlib.client.CredentialsProvider;
@@ -253,6 +257,24 @@ public class Collect extends Application {
                 mgr.getSingularProperty(PropertyManager.DEVICE_ID_PROPERTY));
 
         AuthDialogUtility.setWebCredentialsFromPreferences(this);
+
+        // pick up any finalized instances whose packaging was interrupted
+        FinalizeService.start(this);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        FormDefCache.getInstance().trimMemory(level);
+        ItemsetCache.getInstance().trimMemory(level);
+        ItemsetDbAdapter.trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        FormDefCache.getInstance().clear();
+        ItemsetCache.getInstance().clear();
     }
 
     /**
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.utilities.FileUtils;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the md5 hash of files keyed by their path, size and last modified time, so that an
+ * unchanged form, media file or itemsets.csv does not have to be streamed through the digest
+ * every time its hash is needed.
+ *
+ * The fingerprints are kept in "/sdcard/odk/metadata/fingerprints.db" and mirrored in memory.
+ * A hash is only remembered once the file has not been modified for a little while: a file that
+ * is rewritten within the resolution of its last modified time could otherwise keep a stale hash.
+ */
+public class FileFingerprintStore {
+    private static final String t = "FileFingerprintStore";
+
+    public static final String DATABASE_NAME = "fingerprints.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String FINGERPRINTS_TABLE = "fingerprints";
+    private static final String KEY_PATH = "path";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_MD5_HASH = "md5_hash";
+
+    private static final String CREATE_FINGERPRINTS_TABLE =
+            "create table " + FINGERPRINTS_TABLE + " ("
+                    + KEY_PATH + " text primary key, "
+                    + KEY_SIZE + " integer not null, "
+                    + KEY_LAST_MODIFIED + " integer not null, "
+                    + KEY_MD5_HASH + " text not null"
+                    + ");";
+
+    // files modified more recently than this are hashed but not remembered
+    private static final long RACY_INTERVAL_MILLIS = 2000;
+
+    private static class DatabaseHelper extends ODKSQLiteOpenHelper {
+        DatabaseHelper() {
+            super(Collect.METADATA_PATH, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(CREATE_FINGERPRINTS_TABLE);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // it's only a cache, so just start over
+            db.execSQL("DROP TABLE IF EXISTS " + FINGERPRINTS_TABLE);
+            onCreate(db);
+        }
+    }
+
+    private static class Fingerprint {
+        final long size;
+        final long lastModified;
+        final String md5Hash;
+
+        Fingerprint(long size, long lastModified, String md5Hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.md5Hash = md5Hash;
+        }
+
+        boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+    }
+
+    private static FileFingerprintStore singleton = null;
+
+    private final DatabaseHelper mDbHelper = new DatabaseHelper();
+    private Map<String, Fingerprint> mFingerprints = null;
+
+    private FileFingerprintStore() {
+    }
+
+    public static synchronized FileFingerprintStore getInstance() {
+        if (singleton == null) {
+            singleton = new FileFingerprintStore();
+        }
+        return singleton;
+    }
+
+    /**
+     * Drop-in replacement for {@link FileUtils#getMd5Hash(File)} that only reads the file if it
+     * has changed since it was last hashed.
+     *
+     * @return the md5 hash of the file, or null if the file could not be read
+     */
+    public String getMd5Hash(File file) {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+
+        Fingerprint fingerprint = lookup(path);
+        if (fingerprint != null && fingerprint.matches(size, lastModified)) {
+            return fingerprint.md5Hash;
+        }
+
+        // hash outside of the lock so that a large file doesn't hold up everyone else
+        String md5Hash = FileUtils.getMd5Hash(file);
+        if (md5Hash == null) {
+            return null;
+        }
+
+        // only remember the hash if the file was not changed while we were reading it
+        if (lastModified != 0
+                && System.currentTimeMillis() - lastModified > RACY_INTERVAL_MILLIS
+                && file.length() == size && file.lastModified() == lastModified) {
+            store(path, new Fingerprint(size, lastModified, md5Hash));
+        }
+        return md5Hash;
+    }
+
+    /**
+     * Forgets every fingerprint, e.g. when the forms are reset.
+     */
+    public synchronized void clear() {
+        mFingerprints = new HashMap<String, Fingerprint>();
+        try {
+            mDbHelper.getWritableDatabase().delete(FINGERPRINTS_TABLE, null, null);
+        } catch (SQLException e) {
+            Log.e(t, "Unable to clear fingerprints", e);
+        }
+    }
+
+    private synchronized Fingerprint lookup(String path) {
+        if (mFingerprints == null) {
+            load();
+        }
+        return mFingerprints.get(path);
+    }
+
+    private synchronized void store(String path, Fingerprint fingerprint) {
+        mFingerprints.put(path, fingerprint);
+
+        ContentValues values = new ContentValues();
+        values.put(KEY_PATH, path);
+        values.put(KEY_SIZE, fingerprint.size);
+        values.put(KEY_LAST_MODIFIED, fingerprint.lastModified);
+        values.put(KEY_MD5_HASH, fingerprint.md5Hash);
+        try {
+            mDbHelper.getWritableDatabase().insertWithOnConflict(FINGERPRINTS_TABLE, null,
+                    values, SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLException e) {
+            // we still have it in memory for this session
+            Log.e(t, "Unable to store fingerprint of " + path, e);
+        }
+    }
+
+    /**
+     * Reads all the fingerprints in one go; there is one row per form and media file.
+     */
+    private void load() {
+        mFingerprints = new HashMap<String, Fingerprint>();
+        Cursor c = null;
+        try {
+            c = mDbHelper.getReadableDatabase().query(FINGERPRINTS_TABLE,
+                    new String[]{KEY_PATH, KEY_SIZE, KEY_LAST_MODIFIED, KEY_MD5_HASH},
+                    null, null, null, null, null);
+            while (c.moveToNext()) {
+                mFingerprints.put(c.getString(0),
+                        new Fingerprint(c.getLong(1), c.getLong(2), c.getString(3)));
+            }
+            Log.i(t, "Loaded " + mFingerprints.size() + " fingerprints");
+        } catch (SQLException e) {
+            Log.e(t, "Unable to load fingerprints", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import org.odk.collect.android.application.Collect;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Durable queue of instances that have been saved and marked as finalized, but whose submission
+ * still has to be packaged (encrypted) by the
+ * {@link org.odk.collect.android.services.FinalizeService}.
+ *
+ * The queue is kept in "/sdcard/odk/metadata/finalize.db" so that an instance whose packaging was
+ * interrupted by the process being killed is picked up again the next time the app starts. Until
+ * its job is done the instance stays saved as incomplete, exactly as it is when packaging fails in
+ * the foreground, but it can't be opened for editing: see {@link #isQueued(File)}.
+ */
+public class FinalizeQueue {
+    private static final String t = "FinalizeQueue";
+
+    public static final String DATABASE_NAME = "finalize.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String JOBS_TABLE = "jobs";
+    private static final String KEY_INSTANCE_PATH = "instance_path";
+    private static final String KEY_INSTANCE_ID = "instance_id";
+    private static final String KEY_INSTANCE_NAME = "instance_name";
+    private static final String KEY_INSTANCE_LAST_MODIFIED = "instance_last_modified";
+    private static final String KEY_SUBMISSION_ENTIRE_FORM = "submission_entire_form";
+    private static final String KEY_STATE = "state";
+    private static final String KEY_ATTEMPTS = "attempts";
+    private static final String KEY_LAST_ERROR = "last_error";
+    private static final String KEY_ENQUEUED = "enqueued";
+
+    /**
+     * The submission has yet to be encrypted.
+     */
+    public static final String STATE_PENDING = "pending";
+
+    /**
+     * The submission is encrypted and the instance is marked complete; all that is left is
+     * replacing the instance with submission.xml and deleting the plaintext files.
+     */
+    public static final String STATE_COMMITTED = "committed";
+
+    private static final String CREATE_JOBS_TABLE =
+            "create table " + JOBS_TABLE + " ("
+                    + KEY_INSTANCE_PATH + " text primary key, "
+                    + KEY_INSTANCE_ID + " text not null, "
+                    + KEY_INSTANCE_NAME + " text, "
+                    + KEY_INSTANCE_LAST_MODIFIED + " integer not null, "
+                    + KEY_SUBMISSION_ENTIRE_FORM + " integer not null, "
+                    + KEY_STATE + " text not null, "
+                    + KEY_ATTEMPTS + " integer not null default 0, "
+                    + KEY_LAST_ERROR + " text, "
+                    + KEY_ENQUEUED + " integer not null"
+                    + ");";
+
+    private static final String[] JOB_COLUMNS = {
+            KEY_INSTANCE_PATH, KEY_INSTANCE_ID, KEY_INSTANCE_NAME, KEY_INSTANCE_LAST_MODIFIED,
+            KEY_SUBMISSION_ENTIRE_FORM, KEY_STATE, KEY_ATTEMPTS, KEY_LAST_ERROR
+    };
+
+    private static class DatabaseHelper extends ODKSQLiteOpenHelper {
+        DatabaseHelper() {
+            super(Collect.METADATA_PATH, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(CREATE_JOBS_TABLE);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // no upgrades yet
+        }
+    }
+
+    /**
+     * One queued instance.
+     */
+    public static class Job {
+        public final File instanceXml;
+        public final String instanceId;
+        public final String instanceName;
+        public final long instanceLastModified;
+        public final boolean submissionEntireForm;
+        public final String state;
+        public final int attempts;
+        public final String lastError;
+
+        Job(File instanceXml, String instanceId, String instanceName, long instanceLastModified,
+                boolean submissionEntireForm, String state, int attempts, String lastError) {
+            this.instanceXml = instanceXml;
+            this.instanceId = instanceId;
+            this.instanceName = instanceName;
+            this.instanceLastModified = instanceLastModified;
+            this.submissionEntireForm = submissionEntireForm;
+            this.state = state;
+            this.attempts = attempts;
+            this.lastError = lastError;
+        }
+    }
+
+    private static FinalizeQueue singleton = null;
+
+    private final DatabaseHelper mDbHelper = new DatabaseHelper();
+
+    private FinalizeQueue() {
+    }
+
+    public static synchronized FinalizeQueue getInstance() {
+        if (singleton == null) {
+            singleton = new FinalizeQueue();
+        }
+        return singleton;
+    }
+
+    /**
+     * Queues an instance whose reloadable instance (and, if the submission is only part of the
+     * form, submission.xml) has just been written. Replaces any job already queued for it.
+     */
+    public synchronized void enqueue(File instanceXml, String instanceId, String instanceName,
+            boolean submissionEntireForm) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_INSTANCE_PATH, instanceXml.getAbsolutePath());
+        values.put(KEY_INSTANCE_ID, instanceId);
+        values.put(KEY_INSTANCE_NAME, instanceName);
+        values.put(KEY_INSTANCE_LAST_MODIFIED, instanceXml.lastModified());
+        values.put(KEY_SUBMISSION_ENTIRE_FORM, submissionEntireForm ? 1 : 0);
+        values.put(KEY_STATE, STATE_PENDING);
+        values.put(KEY_ATTEMPTS, 0);
+        values.put(KEY_ENQUEUED, System.currentTimeMillis());
+        mDbHelper.getWritableDatabase().insertWithOnConflict(JOBS_TABLE, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+        Log.i(t, "Queued " + instanceXml.getName());
+    }
+
+    /**
+     * @return the job queued for the instance, or null if there is none
+     */
+    public synchronized Job get(File instanceXml) {
+        List<Job> jobs = query(KEY_INSTANCE_PATH + "=?",
+                new String[]{instanceXml.getAbsolutePath()});
+        return jobs.isEmpty() ? null : jobs.get(0);
+    }
+
+    /**
+     * @return true if the instance is waiting to be packaged, and so must not be edited
+     */
+    public synchronized boolean isQueued(File instanceXml) {
+        return get(instanceXml) != null;
+    }
+
+    /**
+     * @return every queued job, oldest first
+     */
+    public synchronized List<Job> getJobs() {
+        return query(null, null);
+    }
+
+    public synchronized void setCommitted(Job job) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_STATE, STATE_COMMITTED);
+        update(job.instanceXml, values);
+    }
+
+    public synchronized void setFailed(Job job, String error) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_ATTEMPTS, job.attempts + 1);
+        values.put(KEY_LAST_ERROR, error);
+        update(job.instanceXml, values);
+    }
+
+    /**
+     * Drops the job queued for the instance, e.g. because it was saved again as incomplete.
+     */
+    public synchronized void remove(File instanceXml) {
+        try {
+            mDbHelper.getWritableDatabase().delete(JOBS_TABLE, KEY_INSTANCE_PATH + "=?",
+                    new String[]{instanceXml.getAbsolutePath()});
+        } catch (SQLException e) {
+            Log.e(t, "Unable to remove " + instanceXml.getAbsolutePath(), e);
+        }
+    }
+
+    private void update(File instanceXml, ContentValues values) {
+        mDbHelper.getWritableDatabase().update(JOBS_TABLE, values, KEY_INSTANCE_PATH + "=?",
+                new String[]{instanceXml.getAbsolutePath()});
+    }
+
+    private List<Job> query(String selection, String[] selectionArgs) {
+        List<Job> jobs = new ArrayList<Job>();
+        Cursor c = null;
+        try {
+            c = mDbHelper.getReadableDatabase().query(JOBS_TABLE, JOB_COLUMNS, selection,
+                    selectionArgs, null, null, KEY_ENQUEUED + " ASC");
+            while (c.moveToNext()) {
+                jobs.add(new Job(new File(c.getString(0)), c.getString(1), c.getString(2),
+                        c.getLong(3), c.getInt(4) != 0, c.getString(5), c.getInt(6),
+                        c.getString(7)));
+            }
+        } catch (SQLException e) {
+            Log.e(t, "Unable to read the finalize queue", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return jobs;
+    }
+}
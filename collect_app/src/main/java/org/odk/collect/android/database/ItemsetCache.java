@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import android.content.ComponentCallbacks2;
+import android.database.Cursor;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide cache of the parsed queries of the itemset selects of the form being filled in,
+ * and of the choices they returned.
+ *
+ * An itemset select is rebuilt every time it comes on screen, so without the cache every swipe
+ * back and forth parsed its query again and ran it against itemsets.db. The queries are parsed
+ * once per form load, and the choices are kept keyed by the itemsets.csv they came from, the
+ * list name, the values of the arguments and the language. The choices of an itemsets.csv are
+ * dropped as soon as the form loader finds that its md5 hash has changed.
+ */
+public class ItemsetCache {
+    private static final String t = "ItemsetCache";
+
+    // the most choices, over all the cached lists, to keep
+    private static final int MAX_CACHED_ITEMS = 10000;
+
+    // separates the parts of a cache key; can't be in a file path or a csv value
+    private static final char KEY_SEPARATOR = '\0';
+
+    /**
+     * One choice of an itemset select.
+     */
+    public static class Item {
+        public final String label;
+        public final String value;
+
+        Item(String label, String value) {
+            this.label = label;
+            this.value = value;
+        }
+    }
+
+    private static ItemsetCache singleton = null;
+
+    private final Map<String, ItemsetQuery> mQueries = new HashMap<String, ItemsetQuery>();
+
+    // the md5 hash of each itemsets.csv, by path, as of the last time its form was loaded
+    private final Map<String, String> mItemsetHashes = new HashMap<String, String>();
+
+    private final LruCache<String, List<Item>> mResults =
+            new LruCache<String, List<Item>>(MAX_CACHED_ITEMS) {
+                @Override
+                protected int sizeOf(String key, List<Item> items) {
+                    return items.size() + 1;
+                }
+            };
+
+    private ItemsetCache() {
+    }
+
+    public static synchronized ItemsetCache getInstance() {
+        if (singleton == null) {
+            singleton = new ItemsetCache();
+        }
+        return singleton;
+    }
+
+    /**
+     * Replaces the parsed queries with those of the form that has just been loaded.
+     */
+    public synchronized void setQueries(List<ItemsetQuery> queries) {
+        mQueries.clear();
+        for (ItemsetQuery query : queries) {
+            mQueries.put(query.getNodeset(), query);
+        }
+    }
+
+    /**
+     * @return the parsed query attribute, parsed now if the form loader didn't
+     */
+    public synchronized ItemsetQuery getQuery(String nodesetStr) {
+        ItemsetQuery query = mQueries.get(nodesetStr);
+        if (query == null) {
+            query = ItemsetQuery.parse(nodesetStr);
+            mQueries.put(nodesetStr, query);
+        }
+        return query;
+    }
+
+    /**
+     * Records the md5 hash of an itemsets.csv that has just been checked, and drops the choices
+     * read from it if it has changed.
+     */
+    public synchronized void setItemsetsHash(String path, String md5Hash) {
+        String previous = mItemsetHashes.put(path, md5Hash);
+        if (previous != null && !previous.equals(md5Hash)) {
+            int evicted = 0;
+            String prefix = path + KEY_SEPARATOR;
+            for (String key : mResults.snapshot().keySet()) {
+                if (key.startsWith(prefix)) {
+                    mResults.remove(key);
+                    evicted++;
+                }
+            }
+            Log.i(t, path + " has changed, dropped " + evicted + " cached lists");
+        }
+    }
+
+    /**
+     * Runs an itemset query, or returns the choices it returned last time.
+     *
+     * @param selectionArgs the list name followed by the values of the arguments
+     * @param language      the language of the labels, or "" for the default label
+     */
+    public synchronized List<Item> getItems(File itemsetFile, ItemsetQuery query,
+            String[] selectionArgs, String language) {
+        String path = itemsetFile.getAbsolutePath();
+        String md5Hash = mItemsetHashes.get(path);
+
+        // only cache choices from a csv whose version is known
+        String key = null;
+        if (md5Hash != null) {
+            StringBuilder sb = new StringBuilder(path).append(KEY_SEPARATOR).append(md5Hash)
+                    .append(KEY_SEPARATOR).append(language)
+                    .append(KEY_SEPARATOR).append(query.getSelection());
+            for (String selectionArg : selectionArgs) {
+                sb.append(KEY_SEPARATOR).append(selectionArg);
+            }
+            key = sb.toString();
+
+            List<Item> items = mResults.get(key);
+            if (items != null) {
+                return items;
+            }
+        }
+
+        List<Item> items = queryItems(path, query.getSelection(), selectionArgs, language);
+        if (key != null) {
+            mResults.put(key, items);
+        }
+        Log.i(t, "Read " + items.size() + " choices of " + query.getListName() + " (hits: "
+                + mResults.hitCount() + ", misses: " + mResults.missCount() + ")");
+        return items;
+    }
+
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mResults.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mResults.trimToSize(mResults.size() / 2);
+        }
+    }
+
+    /**
+     * Forgets every cached choice and hash, e.g. when the forms are reset.
+     */
+    public synchronized void clear() {
+        mResults.evictAll();
+        mItemsetHashes.clear();
+    }
+
+    private static List<Item> queryItems(String path, String selection, String[] selectionArgs,
+            String language) {
+        List<Item> items = new ArrayList<Item>();
+        ItemsetDbAdapter ida = new ItemsetDbAdapter();
+        ida.openReadOnly();
+        try {
+            // name of the itemset table for this form
+            String pathHash = ItemsetDbAdapter.getMd5FromString(path);
+            Cursor c = ida.query(pathHash, selection, selectionArgs);
+            if (c != null) {
+                try {
+                    // apparently you only need the double quotes in the column name when
+                    // creating the column with a : included
+                    int langCol = c.getColumnIndex("label" + "::" + language);
+                    // if the label:lang column doesn't exist, then just use label
+                    int labelCol = langCol != -1 ? langCol : c.getColumnIndex("label");
+                    // the actual value is stored in name
+                    int valueCol = c.getColumnIndex("name");
+                    while (c.moveToNext()) {
+                        items.add(new Item(c.getString(labelCol), c.getString(valueCol)));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+        } finally {
+            ida.close();
+        }
+        return Collections.unmodifiableList(items);
+    }
+}
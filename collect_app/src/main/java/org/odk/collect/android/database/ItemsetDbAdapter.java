@@ -1,37 +1,71 @@
 package org.odk.collect.android.database;
 
+import android.content.ComponentCallbacks2;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
 import android.util.Log;
 
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.utilities.CsvTokenizer;
 
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Access to itemsets.db, the tables read from the forms' itemsets.csv files.
+ *
+ * All adapters share one connection, which is opened by the first of them and stays open for as
+ * long as the application runs, so opening an adapter doesn't open the file, check the schema
+ * and set up the journal each time. {@link #close()} only lets go of the adapter; the connection
+ * is closed by {@link #closeDatabase()}, or when the application is asked to trim its memory
+ * while no adapter is open.
+ */
 public class ItemsetDbAdapter {
 
     public static final String KEY_ID = "_id";
 
     private static final String TAG = "ItemsetDbAdapter";
+
+    // the connection all adapters share, and how many adapters are open on it
+    private static DatabaseHelper sDbHelper;
+    private static int sOpenAdapters = 0;
+
+    // the connection this adapter was opened on, which closeDatabase() may since have replaced
     private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
+    private boolean mReadOnly;
+
+    // the insert addRow(String, String[], CsvTokenizer) last used, and the table it is for
+    private SQLiteStatement mAddRowStatement;
+    private String mAddRowTable;
+    private int[] mAddRowBindIndexes;
 
     public static final String DATABASE_NAME = "itemsets.db";
     private static final String DATABASE_TABLE = "itemset_";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 3;
 
     private static final String ITEMSET_TABLE = "itemsets";
     private static final String KEY_ITEMSET_HASH = "hash";
     private static final String KEY_PATH = "path";
+    // the indexes created on the itemset table, one per line, each a comma separated list of
+    // the columns indexed
+    private static final String KEY_INDEXES = "indexes";
 
     private static final String CREATE_ITEMSET_TABLE =
             "create table " + ITEMSET_TABLE + " (_id integer primary key autoincrement, "
                     + KEY_ITEMSET_HASH + " text, "
-                    + KEY_PATH + " text "
+                    + KEY_PATH + " text, "
+                    + KEY_INDEXES + " text "
                     + ");";
 
     /**
@@ -51,6 +85,14 @@ public class ItemsetDbAdapter {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion == 2) {
+                // the existing itemset tables are still good, they just have no indexes yet
+                Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                        + newVersion + ", which keeps the itemsets");
+                db.execSQL("ALTER TABLE " + ITEMSET_TABLE + " ADD COLUMN " + KEY_INDEXES
+                        + " text");
+                return;
+            }
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                     + newVersion + ", which will destroy all old data");
             // first drop all of our generated itemset tables
@@ -83,16 +125,89 @@ public class ItemsetDbAdapter {
      * @throws SQLException if the database could be neither opened or created
      */
     public ItemsetDbAdapter open() throws SQLException {
-        mDbHelper = new DatabaseHelper();
-        mDb = mDbHelper.getWritableDatabase();
+        acquireDatabase();
+        mReadOnly = false;
         return this;
     }
 
+    /**
+     * Opens the database for queries only, as the widgets need it; the methods that change it
+     * throw an IllegalStateException.
+     *
+     * @return this (self reference, allowing this to be chained in an
+     * initialization call)
+     * @throws SQLException if the database could be neither opened or created
+     */
+    public ItemsetDbAdapter openReadOnly() throws SQLException {
+        acquireDatabase();
+        mReadOnly = true;
+        return this;
+    }
+
+    /**
+     * Lets go of the database. The shared connection stays open for the next adapter.
+     */
     public void close() {
-        mDbHelper.close();
+        closeAddRowStatement();
+        if (mDb != null) {
+            releaseDatabase(mDbHelper);
+            mDb = null;
+            mDbHelper = null;
+        }
+    }
+
+    private void acquireDatabase() throws SQLException {
+        synchronized (ItemsetDbAdapter.class) {
+            if (sDbHelper == null) {
+                sDbHelper = new DatabaseHelper();
+            }
+            mDb = sDbHelper.getWritableDatabase();
+            mDbHelper = sDbHelper;
+            sOpenAdapters++;
+        }
+    }
+
+    private static synchronized void releaseDatabase(DatabaseHelper dbHelper) {
+        // adapters opened before closeDatabase() aren't counted on the connection opened since
+        if (dbHelper == sDbHelper && sOpenAdapters > 0) {
+            sOpenAdapters--;
+        }
+    }
+
+    /**
+     * Closes the shared connection, e.g. before itemsets.db is deleted. Adapters still open
+     * can't be used after this; the next one opened opens the database again.
+     */
+    public static synchronized void closeDatabase() {
+        if (sDbHelper != null) {
+            if (sOpenAdapters > 0) {
+                Log.w(TAG, "Closing " + DATABASE_NAME + " with " + sOpenAdapters
+                        + " adapters still open");
+            }
+            sDbHelper.close();
+            sDbHelper = null;
+            sOpenAdapters = 0;
+        }
+    }
+
+    /**
+     * Closes the shared connection if the application is in the background and no adapter is
+     * using it; it is opened again when it is needed.
+     */
+    public static synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND && sOpenAdapters == 0) {
+            closeDatabase();
+        }
+    }
+
+    private void checkWritable() {
+        if (mReadOnly) {
+            throw new IllegalStateException(DATABASE_NAME + " was opened read-only");
+        }
     }
 
     public boolean createTable(String formHash, String pathHash, String[] columns, String path) {
+        checkWritable();
         StringBuilder sb = new StringBuilder();
 
         // get md5 of the path to itemset.csv, which is unique per form
@@ -124,20 +239,123 @@ public class ItemsetDbAdapter {
         return true;
     }
 
-    public boolean addRow(String tableName, String[] columns, String[] newRow) {
-        ContentValues cv = new ContentValues();
+    /**
+     * Adds the current record of a csv, binding its fields to a statement compiled once per
+     * table rather than building ContentValues for every row.
+     */
+    public boolean addRow(String tableName, String[] columns, CsvTokenizer row) {
+        checkWritable();
+        if (mAddRowStatement == null || !tableName.equals(mAddRowTable)) {
+            closeAddRowStatement();
+            StringBuilder insertColumns = new StringBuilder();
+            StringBuilder insertParameters = new StringBuilder();
+            mAddRowBindIndexes = new int[columns.length];
+            int bindCount = 0;
+            for (int i = 0; i < columns.length; i++) {
+                if (!columns[i].isEmpty()) {
+                    mAddRowBindIndexes[i] = ++bindCount;
+                    insertColumns.append(bindCount > 1 ? ", \"" : "\"").append(columns[i])
+                            .append("\"");
+                    insertParameters.append(bindCount > 1 ? ", ?" : "?");
+                }
+            }
+            mAddRowStatement = mDb.compileStatement("INSERT INTO " + DATABASE_TABLE + tableName
+                    + " (" + insertColumns + ") VALUES (" + insertParameters + ")");
+            mAddRowTable = tableName;
+        }
 
-        // rows don't necessarily use all the columns
+        // rows don't necessarily use all the columns, and the ones they don't use are null
         // but a column is guaranteed to exist for a row (or else blow up)
-        for (int i = 0; i < newRow.length; i++) {
-            if (!columns[i].isEmpty()) {
-                cv.put("\"" + columns[i] + "\"", newRow[i]);
+        if (row.getFieldCount() > columns.length) {
+            throw new ArrayIndexOutOfBoundsException(columns.length);
+        }
+        mAddRowStatement.clearBindings();
+        for (int i = 0; i < row.getFieldCount(); i++) {
+            if (mAddRowBindIndexes[i] != 0) {
+                mAddRowStatement.bindString(mAddRowBindIndexes[i], row.getField(i));
             }
         }
-        mDb.insert(DATABASE_TABLE + tableName, null, cv);
+        try {
+            mAddRowStatement.executeInsert();
+        } catch (SQLException e) {
+            // as SQLiteDatabase.insert() does
+            Log.e(TAG, "Error inserting into " + tableName, e);
+        }
         return true;
     }
 
+    private void closeAddRowStatement() {
+        if (mAddRowStatement != null) {
+            mAddRowStatement.close();
+            mAddRowStatement = null;
+            mAddRowTable = null;
+        }
+    }
+
+    /**
+     * Indexes an itemset table, so that a query on the indexed columns doesn't have to scan the
+     * whole table. Indexes on columns the table doesn't have are skipped, and the indexes
+     * created are recorded with the table, so each is only created once.
+     *
+     * @param indexes the columns of each index, in order
+     * @return the number of indexes created
+     */
+    public int createIndexes(String pathHash, String path, List<List<String>> indexes) {
+        checkWritable();
+        Set<String> tableColumns = new HashSet<String>();
+        Cursor c = mDb.rawQuery("PRAGMA table_info(" + DATABASE_TABLE + pathHash + ")", null);
+        try {
+            int nameIndex = c.getColumnIndex("name");
+            while (c.moveToNext()) {
+                tableColumns.add(c.getString(nameIndex));
+            }
+        } finally {
+            c.close();
+        }
+
+        Set<String> recorded = new LinkedHashSet<String>();
+        c = getItemsets(path);
+        try {
+            if (c.moveToFirst()) {
+                String definitions = c.getString(c.getColumnIndex(KEY_INDEXES));
+                if (definitions != null && definitions.length() > 0) {
+                    recorded.addAll(Arrays.asList(definitions.split("\n")));
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        int created = 0;
+        for (List<String> columns : indexes) {
+            String definition = TextUtils.join(",", columns);
+            if (columns.isEmpty() || recorded.contains(definition)
+                    || !tableColumns.containsAll(columns)) {
+                continue;
+            }
+
+            StringBuilder indexedColumns = new StringBuilder();
+            for (String column : columns) {
+                indexedColumns.append(indexedColumns.length() > 0 ? ", \"" : "\"")
+                        .append(column).append("\"");
+            }
+            String indexSQL = "CREATE INDEX IF NOT EXISTS \"" + DATABASE_TABLE + pathHash + "_"
+                    + getMd5FromString(definition) + "\" ON " + DATABASE_TABLE + pathHash
+                    + " (" + indexedColumns + ")";
+            Log.i(TAG, indexSQL);
+            mDb.execSQL(indexSQL);
+            recorded.add(definition);
+            created++;
+        }
+
+        if (created > 0) {
+            ContentValues cv = new ContentValues();
+            cv.put(KEY_INDEXES, TextUtils.join("\n", recorded));
+            mDb.update(ITEMSET_TABLE, cv, KEY_PATH + "=?", new String[]{path});
+        }
+        return created;
+    }
+
     public boolean tableExists(String tableName) {
         // select name from sqlite_master where type = 'table'
         String selection = "type=? and name=?";
@@ -155,12 +373,18 @@ public class ItemsetDbAdapter {
 
     }
 
+    /**
+     * Starts a transaction on the shared connection; it belongs to the calling thread, so other
+     * adapters wait for it rather than joining it.
+     */
     public void beginTransaction() {
-        mDb.execSQL("BEGIN");
+        checkWritable();
+        mDb.beginTransaction();
     }
 
     public void commit() {
-        mDb.execSQL("COMMIT");
+        mDb.setTransactionSuccessful();
+        mDb.endTransaction();
     }
 
     public Cursor query(String hash, String selection, String[] selectionArgs) throws SQLException {
@@ -170,6 +394,7 @@ public class ItemsetDbAdapter {
     }
 
     public void dropTable(String pathHash, String path) {
+        checkWritable();
         // drop the table
         mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE + pathHash);
 
@@ -191,6 +416,7 @@ public class ItemsetDbAdapter {
     }
 
     public void delete(String path) {
+        checkWritable();
         Cursor c = getItemsets(path);
         if (c != null) {
             if (c.getCount() == 1) {
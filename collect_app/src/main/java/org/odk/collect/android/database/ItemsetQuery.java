@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import android.util.Log;
+
+import org.javarosa.core.model.IFormElement;
+import org.javarosa.core.model.QuestionDef;
+import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.parser.XPathSyntaxException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The "query" attribute of an itemset select, made into a selection on the itemsets.csv table.
+ *
+ * The format of the query should be something like this:
+ * query="instance('cities')/root/item[state=/data/state and county=/data/county]"
+ */
+public class ItemsetQuery {
+    private static final String t = "ItemsetQuery";
+
+    public static final String LIST_NAME_COLUMN = "list_name";
+
+    private final String mNodeset;
+    private final String mListName;
+    private final String mSelection;
+    private final List<String> mColumns;
+    private final List<String> mArguments;
+    private final boolean mHasOr;
+
+    // the arguments parsed into XPath, up to the first that can't be parsed
+    private XPathExpression[] mExpressions;
+
+    private ItemsetQuery(String nodeset, String listName, String selection, List<String> columns,
+            List<String> arguments, boolean hasOr) {
+        mNodeset = nodeset;
+        mListName = listName;
+        mSelection = selection;
+        mColumns = Collections.unmodifiableList(columns);
+        mArguments = Collections.unmodifiableList(arguments);
+        mHasOr = hasOr;
+    }
+
+    public static ItemsetQuery parse(String nodesetStr) {
+        // parse out the list name, between the ''
+        String listName = nodesetStr.substring(nodesetStr.indexOf("'") + 1,
+                nodesetStr.lastIndexOf("'"));
+
+        // isolate the string between between the [ ] characters
+        String queryString = nodesetStr.substring(nodesetStr.indexOf("[") + 1,
+                nodesetStr.lastIndexOf("]"));
+
+        StringBuilder selection = new StringBuilder();
+        // add the list name as the first argument, which will always be there
+        selection.append(LIST_NAME_COLUMN + "=?");
+
+        // check to see if there are any arguments
+        if (queryString.indexOf("=") != -1) {
+            selection.append(" and ");
+        }
+
+        // can't just split on 'and' or 'or' because they have different
+        // behavior, so loop through and break them off until we don't have any
+        // more
+        // must include the spaces in indexOf so we don't match words like
+        // "land"
+        int andIndex = -1;
+        int orIndex = -1;
+        boolean hasOr = false;
+        List<String> columns = new ArrayList<String>();
+        List<String> arguments = new ArrayList<String>();
+        while ((andIndex = queryString.indexOf(" and ")) != -1
+                || (orIndex = queryString.indexOf(" or ")) != -1) {
+            if (andIndex != -1) {
+                String subString = queryString.substring(0, andIndex);
+                String pair[] = subString.split("=");
+                if (pair.length == 2) {
+                    selection.append(pair[0].trim() + "=? and ");
+                    columns.add(pair[0].trim());
+                    arguments.add(pair[1].trim());
+                } else {
+                    // parse error
+                }
+                // move string forward to after " and "
+                queryString = queryString.substring(andIndex + 5, queryString.length());
+                andIndex = -1;
+            } else if (orIndex != -1) {
+                String subString = queryString.substring(0, orIndex);
+                String pair[] = subString.split("=");
+                if (pair.length == 2) {
+                    selection.append(pair[0].trim() + "=? or ");
+                    columns.add(pair[0].trim());
+                    arguments.add(pair[1].trim());
+                    hasOr = true;
+                } else {
+                    // parse error
+                }
+
+                // move string forward to after " or "
+                queryString = queryString.substring(orIndex + 4, queryString.length());
+                orIndex = -1;
+            }
+        }
+
+        // parse the last segment (or only segment if there are no 'and' or 'or'
+        // clauses
+        String pair[] = queryString.split("=");
+        if (pair.length == 2) {
+            selection.append(pair[0].trim() + "=?");
+            columns.add(pair[0].trim());
+            arguments.add(pair[1].trim());
+        }
+        if (pair.length == 1) {
+            // this is probably okay, because then you just list all items in
+            // the list
+        } else {
+            // parse error
+        }
+
+        return new ItemsetQuery(nodesetStr, listName, selection.toString(), columns, arguments,
+                hasOr);
+    }
+
+    /**
+     * @return the queries of all the itemset selects among the elements and their descendants
+     */
+    public static List<ItemsetQuery> findAll(List<IFormElement> elements) {
+        List<ItemsetQuery> queries = new ArrayList<ItemsetQuery>();
+        findAll(elements, queries);
+        return queries;
+    }
+
+    private static void findAll(List<IFormElement> elements, List<ItemsetQuery> queries) {
+        if (elements == null) {
+            return;
+        }
+        for (IFormElement element : elements) {
+            if (element instanceof QuestionDef) {
+                String nodesetStr = ((QuestionDef) element).getAdditionalAttribute(null, "query");
+                if (nodesetStr != null) {
+                    try {
+                        queries.add(parse(nodesetStr));
+                    } catch (IndexOutOfBoundsException e) {
+                        // the widget will fail on it the same way
+                    }
+                }
+            }
+            findAll(element.getChildren(), queries);
+        }
+    }
+
+    /**
+     * @return the query attribute this was parsed from
+     */
+    public String getNodeset() {
+        return mNodeset;
+    }
+
+    public String getListName() {
+        return mListName;
+    }
+
+    /**
+     * @return the where clause, with list_name first and then one ? for each argument
+     */
+    public String getSelection() {
+        return mSelection;
+    }
+
+    /**
+     * @return the columns the query filters the list on, in the order of the arguments
+     */
+    public List<String> getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * @return the XPath expressions that give the values of the columns
+     */
+    public List<String> getArguments() {
+        return mArguments;
+    }
+
+    /**
+     * Parses the arguments the first time it is called, and returns the same expressions after.
+     *
+     * @return the arguments as XPath expressions; the first argument that can't be parsed and
+     * the ones after it are null
+     */
+    public synchronized XPathExpression[] getArgumentExpressions() {
+        if (mExpressions == null) {
+            mExpressions = new XPathExpression[mArguments.size()];
+            for (int i = 0; i < mArguments.size(); i++) {
+                try {
+                    mExpressions[i] = XPathParseTool.parseXPath(mArguments.get(i));
+                } catch (XPathSyntaxException e) {
+                    Log.e(t, "Unable to parse " + mArguments.get(i), e);
+                    break;
+                }
+            }
+        }
+        return mExpressions;
+    }
+
+    /**
+     * @return the sets of columns to index for the query to find its rows without a scan, led by
+     * list_name when the query only ands its conditions, one for each column otherwise
+     */
+    public List<List<String>> getIndexedColumns() {
+        List<List<String>> indexes = new ArrayList<List<String>>();
+        if (mHasOr) {
+            // list_name=? and a=? or b=? is (list_name=? and a=?) or b=?
+            indexes.add(Collections.singletonList(LIST_NAME_COLUMN));
+            for (String column : mColumns) {
+                indexes.add(Collections.singletonList(column));
+            }
+        } else {
+            List<String> columns = new ArrayList<String>();
+            columns.add(LIST_NAME_COLUMN);
+            for (String column : mColumns) {
+                if (!columns.contains(column)) {
+                    columns.add(column);
+                }
+            }
+            indexes.add(columns);
+        }
+        return indexes;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import org.odk.collect.android.application.Collect;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the databases that external csv files are imported into, keyed by the md5 hash of the
+ * csv, so that forms shipping the same csv share a single imported copy.
+ *
+ * The databases live in "/sdcard/odk/metadata/datasets" and "/sdcard/odk/metadata/datasets.db"
+ * records which dataset of which form uses which of them. A database is deleted as soon as no
+ * dataset uses it any more, e.g. because the forms using it were deleted or their csv changed.
+ * Datasets imported before the store existed are still read from "[form]-media/[dataset].db"
+ * until their csv is imported again.
+ */
+public class SharedDataSetStore {
+    private static final String t = "SharedDataSetStore";
+
+    public static final String DATABASE_NAME = "datasets.db";
+    private static final int DATABASE_VERSION = 1;
+
+    public static final String DATASETS_PATH = Collect.METADATA_PATH + File.separator + "datasets";
+
+    private static final String REFERENCES_TABLE = "dataset_references";
+    private static final String KEY_MEDIA_PATH = "media_path";
+    private static final String KEY_DATASET_NAME = "dataset_name";
+    private static final String KEY_MD5_HASH = "md5_hash";
+
+    private static final String CREATE_REFERENCES_TABLE =
+            "create table " + REFERENCES_TABLE + " ("
+                    + KEY_MEDIA_PATH + " text not null, "
+                    + KEY_DATASET_NAME + " text not null, "
+                    + KEY_MD5_HASH + " text not null, "
+                    + "primary key (" + KEY_MEDIA_PATH + ", " + KEY_DATASET_NAME + ")"
+                    + ");";
+
+    private static final String UPDATING_SUFFIX = ".updating";
+
+    private static class DatabaseHelper extends ODKSQLiteOpenHelper {
+        DatabaseHelper() {
+            super(Collect.METADATA_PATH, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(CREATE_REFERENCES_TABLE);
+            db.execSQL("create index " + REFERENCES_TABLE + "_md5_idx on " + REFERENCES_TABLE
+                    + " (" + KEY_MD5_HASH + ");");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+
+    private static SharedDataSetStore singleton = null;
+
+    private final DatabaseHelper mDbHelper = new DatabaseHelper();
+
+    // one lock per md5 hash, so that forms with the same csv don't import it at the same time
+    private final Map<String, Object> mImportLocks = new HashMap<String, Object>();
+
+    private SharedDataSetStore() {
+    }
+
+    public static synchronized SharedDataSetStore getInstance() {
+        if (singleton == null) {
+            singleton = new SharedDataSetStore();
+        }
+        return singleton;
+    }
+
+    /**
+     * @return the database a csv with this hash is imported into, which may not exist yet
+     */
+    public File getDatabaseFile(String md5Hash) {
+        return new File(DATASETS_PATH, md5Hash + ".db");
+    }
+
+    /**
+     * @return the shared database a dataset of a form uses, or null if it has none, e.g. because
+     * it was imported before datasets were shared
+     */
+    public synchronized File getDatabaseFile(File mediaFolder, String dataSetName) {
+        String md5Hash = getReference(mediaFolder, dataSetName);
+        if (md5Hash == null) {
+            return null;
+        }
+        File dbFile = getDatabaseFile(md5Hash);
+        return dbFile.exists() ? dbFile : null;
+    }
+
+    /**
+     * @return the md5 hash of the csv each dataset of a form was imported from, by dataset name
+     */
+    public synchronized Map<String, String> getDataSets(File mediaFolder) {
+        Map<String, String> dataSets = new HashMap<String, String>();
+        Cursor c = null;
+        try {
+            c = mDbHelper.getReadableDatabase().query(REFERENCES_TABLE,
+                    new String[]{KEY_DATASET_NAME, KEY_MD5_HASH}, KEY_MEDIA_PATH + " = ?",
+                    new String[]{mediaFolder.getAbsolutePath()}, null, null, null);
+            while (c.moveToNext()) {
+                dataSets.put(c.getString(0), c.getString(1));
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return dataSets;
+    }
+
+    /**
+     * @return the object to hold while a csv with this hash is being imported
+     */
+    public synchronized Object getImportLock(String md5Hash) {
+        Object lock = mImportLocks.get(md5Hash);
+        if (lock == null) {
+            lock = new Object();
+            mImportLocks.put(md5Hash, lock);
+        }
+        return lock;
+    }
+
+    /**
+     * Makes a dataset of a form use the database of a csv, if that csv has already been imported.
+     * The database the dataset used before is deleted if nothing else uses it.
+     *
+     * @return the shared database, or null if the csv still has to be imported into
+     * {@link #getDatabaseFile(String)}
+     */
+    public synchronized File acquire(File mediaFolder, String dataSetName, String md5Hash) {
+        File dbFile = getDatabaseFile(md5Hash);
+        if (!dbFile.exists()) {
+            return null;
+        }
+
+        String previousMd5Hash = getReference(mediaFolder, dataSetName);
+        ContentValues values = new ContentValues();
+        values.put(KEY_MEDIA_PATH, mediaFolder.getAbsolutePath());
+        values.put(KEY_DATASET_NAME, dataSetName);
+        values.put(KEY_MD5_HASH, md5Hash);
+        mDbHelper.getWritableDatabase().insertWithOnConflict(REFERENCES_TABLE, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+
+        if (previousMd5Hash != null && !previousMd5Hash.equals(md5Hash)) {
+            deleteIfUnused(previousMd5Hash);
+        }
+        File legacyDbFile = getLegacyDatabaseFile(mediaFolder, dataSetName);
+        if (legacyDbFile.exists()) {
+            Log.i(t, "Deleting " + legacyDbFile.getAbsolutePath() + ", now shared as "
+                    + dbFile.getName());
+            SQLiteDatabase.deleteDatabase(legacyDbFile);
+        }
+        return dbFile;
+    }
+
+    /**
+     * Hands over the database a dataset of a form uses so that it can be updated to a new version
+     * of the csv in place, provided no other dataset uses it. It is moved out of the way, so
+     * that no one else picks it up while it is being updated.
+     *
+     * @return the moved database, which should be moved to {@link #getDatabaseFile(String)} once
+     * updated or given back with {@link #restore(File, File, String)}, or null if the csv has to
+     * be imported from scratch
+     */
+    public synchronized File takeOver(File mediaFolder, String dataSetName, String md5Hash) {
+        File previous;
+        String previousMd5Hash = getReference(mediaFolder, dataSetName);
+        if (previousMd5Hash != null) {
+            if (countReferences(previousMd5Hash) > 1) {
+                return null;
+            }
+            previous = getDatabaseFile(previousMd5Hash);
+        } else {
+            previous = getLegacyDatabaseFile(mediaFolder, dataSetName);
+        }
+        if (!previous.exists()) {
+            return null;
+        }
+
+        File updating = new File(getDatabaseFile(md5Hash).getPath() + UPDATING_SUFFIX);
+        SQLiteDatabase.deleteDatabase(updating);
+        if (!ensureDatasetsFolder() || !previous.renameTo(updating)) {
+            Log.w(t, "Unable to move " + previous.getAbsolutePath() + " to be updated");
+            return null;
+        }
+        return updating;
+    }
+
+    /**
+     * Puts back a database that was taken over but not updated after all.
+     */
+    public synchronized void restore(File updating, File mediaFolder, String dataSetName) {
+        String previousMd5Hash = getReference(mediaFolder, dataSetName);
+        File previous = previousMd5Hash != null ? getDatabaseFile(previousMd5Hash)
+                : getLegacyDatabaseFile(mediaFolder, dataSetName);
+        // someone else may have imported the same csv in the meantime
+        if (previous.exists() || !updating.renameTo(previous)) {
+            SQLiteDatabase.deleteDatabase(updating);
+        }
+    }
+
+    /**
+     * Forgets the datasets of a form that is being deleted, and deletes the databases no other
+     * form uses.
+     */
+    public synchronized void release(String mediaPath) {
+        // keyed the way the form loader spells it
+        String path = new File(mediaPath).getAbsolutePath();
+        Cursor c = null;
+        try {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            c = db.query(true, REFERENCES_TABLE, new String[]{KEY_MD5_HASH},
+                    KEY_MEDIA_PATH + " = ?", new String[]{path}, null, null, null, null);
+            String[] md5Hashes = new String[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                md5Hashes[i] = c.getString(0);
+            }
+            db.delete(REFERENCES_TABLE, KEY_MEDIA_PATH + " = ?", new String[]{path});
+            for (String md5Hash : md5Hashes) {
+                deleteIfUnused(md5Hash);
+            }
+        } catch (SQLException e) {
+            Log.e(t, "Unable to release the datasets of " + mediaPath, e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Forgets every dataset and deletes every shared database, e.g. when the forms are reset.
+     *
+     * @return true if everything was deleted
+     */
+    public synchronized boolean clear() {
+        try {
+            mDbHelper.getWritableDatabase().delete(REFERENCES_TABLE, null, null);
+        } catch (SQLException e) {
+            Log.e(t, "Unable to clear the dataset references", e);
+        }
+
+        boolean deleted = true;
+        File[] files = new File(DATASETS_PATH).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleted &= file.delete();
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return whether the folder of the shared databases exists, creating it if needed
+     */
+    public boolean ensureDatasetsFolder() {
+        File folder = new File(DATASETS_PATH);
+        return folder.isDirectory() || folder.mkdirs();
+    }
+
+    private String getReference(File mediaFolder, String dataSetName) {
+        Cursor c = null;
+        try {
+            c = mDbHelper.getReadableDatabase().query(REFERENCES_TABLE,
+                    new String[]{KEY_MD5_HASH},
+                    KEY_MEDIA_PATH + " = ? AND " + KEY_DATASET_NAME + " = ?",
+                    new String[]{mediaFolder.getAbsolutePath(), dataSetName},
+                    null, null, null);
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private long countReferences(String md5Hash) {
+        return DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(), REFERENCES_TABLE,
+                KEY_MD5_HASH + " = ?", new String[]{md5Hash});
+    }
+
+    private void deleteIfUnused(String md5Hash) {
+        if (countReferences(md5Hash) == 0) {
+            File dbFile = getDatabaseFile(md5Hash);
+            Log.i(t, "Deleting " + dbFile.getAbsolutePath() + ", no longer used by any form");
+            SQLiteDatabase.deleteDatabase(dbFile);
+        }
+    }
+
+    /**
+     * @return where the dataset was imported before datasets were shared
+     */
+    private static File getLegacyDatabaseFile(File mediaFolder, String dataSetName) {
+        return new File(mediaFolder, dataSetName + ".db");
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import org.javarosa.core.model.SelectChoice;
+import org.odk.collect.android.exception.ExternalDataException;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The choices of a search() select, read from the dataset as they are asked for.
+ *
+ * Only the cursor over the matching rows is kept, which SQLite reads one window at a time, plus
+ * the choices of the page last asked for, so the memory used doesn't grow with the number of
+ * rows. Widgets keep their lists for as long as they are on screen, so only the most recently
+ * opened lists hold on to their cursors; the others close theirs and run the query again if they
+ * are used after all. If the dataset was imported again in the meantime and the query no longer
+ * returns as many rows, the list throws an {@link ExternalDataException} rather than hand out
+ * choices that are not there.
+ */
+public class ExternalChoiceList extends AbstractList<SelectChoice> {
+
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_OPEN_CURSORS = 3;
+
+    /**
+     * Builds the choice for the row the cursor is on.
+     */
+    public interface ChoiceFactory {
+        SelectChoice createChoice(Cursor c, int index);
+    }
+
+    // most recently opened last; guarded by ExternalChoiceList.class. Lists are compared by
+    // identity, not by their contents
+    private static final List<ExternalChoiceList> openLists = new ArrayList<ExternalChoiceList>();
+
+    private final ExternalDataManager externalDataManager;
+    private final String dataSetName;
+    private final String sql;
+    private final String[] selectionArgs;
+    private final ChoiceFactory choiceFactory;
+    private final int size;
+
+    private Cursor cursor;
+    private final SelectChoice[] page = new SelectChoice[PAGE_SIZE];
+    private int pageStart = -1;
+
+    /**
+     * Runs the query, which must return exactly one row per choice, in order.
+     */
+    public ExternalChoiceList(ExternalDataManager externalDataManager, String dataSetName,
+            String sql, String[] selectionArgs, ChoiceFactory choiceFactory) {
+        this.externalDataManager = externalDataManager;
+        this.dataSetName = dataSetName;
+        this.sql = sql;
+        this.selectionArgs = selectionArgs;
+        this.choiceFactory = choiceFactory;
+        this.size = open().getCount();
+    }
+
+    /**
+     * @throws ExternalDataException if the query has to run again and no longer returns
+     *                               {@link #size()} rows
+     */
+    @Override
+    public synchronized SelectChoice get(int location) {
+        if (location < 0 || location >= size) {
+            throw new IndexOutOfBoundsException("Invalid index " + location + ", size is " + size);
+        }
+        if (pageStart == -1 || location < pageStart || location >= pageStart + PAGE_SIZE) {
+            Cursor c = open();
+            pageStart = location - location % PAGE_SIZE;
+            int end = Math.min(PAGE_SIZE, size - pageStart);
+            for (int i = 0; i < end; i++) {
+                if (!c.moveToPosition(pageStart + i)) {
+                    int position = pageStart + i;
+                    // the page is only partly filled
+                    pageStart = -1;
+                    throw new ExternalDataException("Choice " + position + " from "
+                            + dataSetName + " is no longer there");
+                }
+                page[i] = choiceFactory.createChoice(c, pageStart + i);
+            }
+            for (int i = end; i < PAGE_SIZE; i++) {
+                page[i] = null;
+            }
+        }
+        return page[location - pageStart];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Closes the cursor. The list can still be used; it just has to run the query again.
+     */
+    public synchronized void close() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+        synchronized (ExternalChoiceList.class) {
+            for (Iterator<ExternalChoiceList> iterator = openLists.iterator();
+                    iterator.hasNext(); ) {
+                if (iterator.next() == this) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the cursors of all the lists, e.g. because their databases are being closed.
+     */
+    public static void closeAll() {
+        ExternalChoiceList[] lists;
+        synchronized (ExternalChoiceList.class) {
+            lists = openLists.toArray(new ExternalChoiceList[openLists.size()]);
+        }
+        for (ExternalChoiceList list : lists) {
+            list.close();
+        }
+    }
+
+    private synchronized Cursor open() {
+        if (cursor == null) {
+            cursor = externalDataManager.getDatabase(dataSetName, true).getReadableDatabase()
+                    .rawQuery(sql, selectionArgs);
+            if (size != 0 && cursor.getCount() != size) {
+                // the dataset was imported again since the list was made
+                String msg = "Choices from " + dataSetName + " have changed from " + size
+                        + " to " + cursor.getCount();
+                Log.e(ExternalDataUtil.LOGGER_NAME, msg);
+                cursor.close();
+                cursor = null;
+                throw new ExternalDataException(msg);
+            }
+
+            ExternalChoiceList eldest = null;
+            synchronized (ExternalChoiceList.class) {
+                openLists.add(this);
+                if (openLists.size() > MAX_OPEN_CURSORS) {
+                    eldest = openLists.remove(0);
+                }
+            }
+            if (eldest != null) {
+                eldest.close();
+            }
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.IFormElement;
+import org.javarosa.core.model.QuestionDef;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.javarosa.xpath.expr.XPathStringLiteral;
+import org.odk.collect.android.database.FileFingerprintStore;
+import org.odk.collect.android.database.SharedDataSetStore;
+import org.odk.collect.android.exception.InvalidSyntaxException;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Indexes the columns of the imported datasets that a form looks rows up by.
+ *
+ * The import only indexes the columns whose names end in "_key", so a form whose pulldata()
+ * calls or search() appearances use any other column would scan the whole table for every
+ * lookup. At form load this finds the reference column of every pulldata() call, and the
+ * filter column and the "matches" or "startsWith" columns of every search(), and indexes the
+ * ones that aren't indexed yet. The columns every search() queries also get a full-text index,
+ * {@link #SEARCH_TABLE_NAME}, which lets the search handler narrow "contains", "startsWith" and
+ * "endsWith" searches down before running their LIKE expressions. The columns indexed are recorded
+ * in the dataset's database, which is replaced when the csv changes, so the indexes are only built
+ * again then.
+ *
+ * Only arguments given as string literals can be analyzed. The calculates of a loaded FormDef
+ * can't be enumerated through JavaRosa, so pulldata() calls are found in the form definition.
+ */
+public class ExternalDataIndexer {
+
+    /**
+     * The FTS4 table indexing the text of the searched columns. It takes its content from the
+     * data table, so its docids are the rowids of the data table.
+     */
+    public static final String SEARCH_TABLE_NAME = "externalSearch";
+
+    private static final String INDEXES_TABLE_NAME = "externalIndexes";
+    private static final String INDEXED_COLUMN = "column_name";
+
+    // recorded for the columns of the search table
+    private static final String SEARCH_INDEX_PREFIX = "fts:";
+
+    // recorded for the forms analyzed, with the md5 hashes of the form and of the csv
+    private static final String ANALYZED_FORM_PREFIX = "form:";
+
+    // keep the search table in step with the data table while a delta is applied
+    private static final String BEFORE_UPDATE_TRIGGER = "search_before_update";
+    private static final String BEFORE_DELETE_TRIGGER = "search_before_delete";
+    private static final String AFTER_UPDATE_TRIGGER = "search_after_update";
+    private static final String AFTER_INSERT_TRIGGER = "search_after_insert";
+
+    private static final String QUOTE = "(?:'|\"|&apos;|&quot;)";
+    private static final String LITERAL = QUOTE + "([^'\"&]*)" + QUOTE;
+    private static final Pattern PULLDATA_REGEX = Pattern.compile("pulldata\\s*\\(\\s*" + LITERAL
+            + "\\s*,\\s*" + LITERAL + "\\s*,\\s*" + LITERAL);
+
+    private ExternalDataIndexer() {
+    }
+
+    /**
+     * Creates the indexes the form needs in the datasets it uses. Datasets that haven't been
+     * imported are skipped.
+     *
+     * Once a form has been analyzed, every dataset of the form records it, so the form isn't
+     * read again until either the form or one of its csvs changes.
+     */
+    public static void createIndexes(FormDef formDef, File formXml, File mediaFolder,
+            ExternalDataManager externalDataManager) {
+        long start = System.currentTimeMillis();
+
+        Map<String, String> dataSets = SharedDataSetStore.getInstance().getDataSets(mediaFolder);
+        String formHash = FileFingerprintStore.getInstance().getMd5Hash(formXml);
+        if (formHash != null && isAnalyzed(formHash, dataSets, mediaFolder,
+                externalDataManager)) {
+            return;
+        }
+
+        Map<String, Set<String>> usedColumns = new HashMap<String, Set<String>>();
+        Map<String, Set<String>> searchedColumns = new HashMap<String, Set<String>>();
+        findPullDataColumns(formXml, usedColumns);
+        findSearchColumns(formDef.getChildren(), usedColumns, searchedColumns);
+
+        int created = 0;
+        for (Map.Entry<String, Set<String>> entry : usedColumns.entrySet()) {
+            ExternalSQLiteOpenHelper sqLiteOpenHelper = externalDataManager.getDatabase(
+                    entry.getKey(), false);
+            if (sqLiteOpenHelper != null) {
+                created += createIndexes(sqLiteOpenHelper.getWritableDatabase(), entry.getKey(),
+                        entry.getValue());
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry : searchedColumns.entrySet()) {
+            ExternalSQLiteOpenHelper sqLiteOpenHelper = externalDataManager.getDatabase(
+                    entry.getKey(), false);
+            if (sqLiteOpenHelper != null) {
+                created += createSearchIndex(sqLiteOpenHelper.getWritableDatabase(),
+                        entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (formHash != null) {
+            recordAnalyzed(formHash, dataSets, externalDataManager);
+        }
+
+        if (created > 0) {
+            Log.i(ExternalDataUtil.LOGGER_NAME, "Created " + created + " indexes for "
+                    + formXml.getName() + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * @return true if every dataset of the form records that this version of the form was
+     * analyzed against its current csv. Datasets imported before they were shared have no md5
+     * hash to check, so a form with any of those is always analyzed.
+     */
+    private static boolean isAnalyzed(String formHash, Map<String, String> dataSets,
+            File mediaFolder, ExternalDataManager externalDataManager) {
+        File[] legacyDatabases = mediaFolder.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".db");
+            }
+        });
+        if (legacyDatabases != null && legacyDatabases.length > 0) {
+            return false;
+        }
+
+        for (Map.Entry<String, String> entry : dataSets.entrySet()) {
+            ExternalSQLiteOpenHelper sqLiteOpenHelper = externalDataManager.getDatabase(
+                    entry.getKey(), false);
+            if (sqLiteOpenHelper == null) {
+                return false;
+            }
+            SQLiteDatabase db = sqLiteOpenHelper.getWritableDatabase();
+            createIndexesTable(db);
+            if (DatabaseUtils.queryNumEntries(db, INDEXES_TABLE_NAME, INDEXED_COLUMN + " = ?",
+                    new String[]{ANALYZED_FORM_PREFIX + formHash + ":" + entry.getValue()})
+                    == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void recordAnalyzed(String formHash, Map<String, String> dataSets,
+            ExternalDataManager externalDataManager) {
+        for (Map.Entry<String, String> entry : dataSets.entrySet()) {
+            ExternalSQLiteOpenHelper sqLiteOpenHelper = externalDataManager.getDatabase(
+                    entry.getKey(), false);
+            if (sqLiteOpenHelper == null) {
+                continue;
+            }
+            SQLiteDatabase db = sqLiteOpenHelper.getWritableDatabase();
+            createIndexesTable(db);
+            db.execSQL("INSERT OR REPLACE INTO " + INDEXES_TABLE_NAME + " (" + INDEXED_COLUMN
+                    + ") VALUES (?)", new Object[]{ANALYZED_FORM_PREFIX + formHash + ":"
+                    + entry.getValue()});
+        }
+    }
+
+    private static void findPullDataColumns(File formXml, Map<String, Set<String>> usedColumns) {
+        String xml;
+        try {
+            xml = FileUtils.readFileToString(formXml, "UTF-8");
+        } catch (IOException e) {
+            Log.e(ExternalDataUtil.LOGGER_NAME, "Unable to read " + formXml.getName(), e);
+            return;
+        }
+
+        Matcher matcher = PULLDATA_REGEX.matcher(xml);
+        while (matcher.find()) {
+            // pulldata(dataset, queried column, reference column, reference value)
+            addColumn(usedColumns, matcher.group(1),
+                    ExternalDataUtil.toSafeColumnName(matcher.group(3)));
+        }
+    }
+
+    private static void findSearchColumns(List<IFormElement> elements,
+            Map<String, Set<String>> usedColumns, Map<String, Set<String>> searchedColumns) {
+        if (elements == null) {
+            return;
+        }
+        for (IFormElement element : elements) {
+            if (element instanceof QuestionDef) {
+                XPathFuncExpr search;
+                try {
+                    search = ExternalDataUtil.getSearchXPathExpression(
+                            ((QuestionDef) element).getAppearanceAttr());
+                } catch (InvalidSyntaxException e) {
+                    // the widget will report it
+                    continue;
+                }
+                if (search != null) {
+                    addSearchColumns(search.args, usedColumns, searchedColumns);
+                }
+            }
+            findSearchColumns(element.getChildren(), usedColumns, searchedColumns);
+        }
+    }
+
+    /**
+     * search(dataset, type, queried columns, queried value, filter column, filter value)
+     */
+    private static void addSearchColumns(XPathExpression[] args,
+            Map<String, Set<String>> usedColumns, Map<String, Set<String>> searchedColumns) {
+        String dataSetName = toLiteral(args[0]);
+        if (dataSetName == null) {
+            return;
+        }
+        if (args.length >= 4) {
+            // a b-tree index can't help with "contains" and "endsWith", but the full-text one can
+            String searchType = toLiteral(args[1]);
+            String queriedColumns = toLiteral(args[2]);
+            if (queriedColumns != null) {
+                boolean prefixSearch = "matches".equalsIgnoreCase(searchType)
+                        || "startsWith".equalsIgnoreCase(searchType);
+                for (String queriedColumn : ExternalDataUtil.createListOfColumns(queriedColumns)) {
+                    if (prefixSearch) {
+                        addColumn(usedColumns, dataSetName, queriedColumn);
+                    }
+                    addColumn(searchedColumns, dataSetName, queriedColumn);
+                }
+            }
+        }
+        if (args.length == 6) {
+            String filterColumn = toLiteral(args[4]);
+            if (filterColumn != null && filterColumn.trim().length() > 0) {
+                addColumn(usedColumns, dataSetName,
+                        ExternalDataUtil.toSafeColumnName(filterColumn));
+            }
+        }
+    }
+
+    private static String toLiteral(XPathExpression expression) {
+        return expression instanceof XPathStringLiteral ? ((XPathStringLiteral) expression).s
+                : null;
+    }
+
+    private static void addColumn(Map<String, Set<String>> usedColumns, String dataSetName,
+            String safeColumnName) {
+        // SCTO-545, as the function handlers do
+        dataSetName = dataSetName.toLowerCase();
+        if (dataSetName.endsWith(".csv")) {
+            dataSetName = dataSetName.substring(0, dataSetName.lastIndexOf(".csv"));
+        }
+
+        Set<String> columns = usedColumns.get(dataSetName);
+        if (columns == null) {
+            columns = new HashSet<String>();
+            usedColumns.put(dataSetName, columns);
+        }
+        columns.add(safeColumnName);
+    }
+
+    /**
+     * @return the number of indexes created
+     */
+    private static int createIndexes(SQLiteDatabase db, String dataSetName, Set<String> columns) {
+        createIndexesTable(db);
+
+        Set<String> skipped = queryColumn(db, "SELECT " + INDEXED_COLUMN + " FROM "
+                + INDEXES_TABLE_NAME, 0);
+        skipped.addAll(getIndexedColumns(db));
+        Set<String> tableColumns = queryColumn(db,
+                "PRAGMA table_info(" + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + ")", 1);
+
+        List<String> missing = new ArrayList<String>();
+        for (String column : columns) {
+            if (!skipped.contains(column) && tableColumns.contains(column)) {
+                missing.add(column);
+            }
+        }
+        if (missing.isEmpty()) {
+            return 0;
+        }
+
+        db.beginTransaction();
+        try {
+            for (String column : missing) {
+                String indexSQL = "CREATE INDEX IF NOT EXISTS auto_" + column + "_idx ON "
+                        + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + " (" + column + ");";
+                Log.w(ExternalDataUtil.LOGGER_NAME, dataSetName + ": " + indexSQL);
+                db.execSQL(indexSQL);
+                db.execSQL("INSERT OR REPLACE INTO " + INDEXES_TABLE_NAME + " (" + INDEXED_COLUMN
+                        + ") VALUES (?)", new Object[]{column});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return missing.size();
+    }
+
+    /**
+     * Creates the search table for the searched columns, or rebuilds it if it doesn't cover all of
+     * them yet.
+     *
+     * @return 1 if the search table was (re)built, 0 otherwise
+     */
+    private static int createSearchIndex(SQLiteDatabase db, String dataSetName,
+            Set<String> columns) {
+        createIndexesTable(db);
+        Set<String> indexed = getSearchIndexColumns(db);
+        Set<String> tableColumns = queryColumn(db,
+                "PRAGMA table_info(" + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + ")", 1);
+
+        // keep the columns other forms search too
+        Set<String> needed = new TreeSet<String>(indexed);
+        for (String column : columns) {
+            if (tableColumns.contains(column)) {
+                needed.add(column);
+            }
+        }
+        if (needed.isEmpty() || needed.equals(indexed)) {
+            return 0;
+        }
+
+        StringBuilder ftsColumns = new StringBuilder();
+        for (String column : needed) {
+            ftsColumns.append(", ").append(column);
+        }
+        String createSQL = "CREATE VIRTUAL TABLE " + SEARCH_TABLE_NAME + " USING fts4(content=\""
+                + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + "\"" + ftsColumns + ")";
+
+        db.beginTransaction();
+        try {
+            Log.w(ExternalDataUtil.LOGGER_NAME, dataSetName + ": " + createSQL);
+            db.execSQL("DROP TABLE IF EXISTS " + SEARCH_TABLE_NAME);
+            db.execSQL(createSQL);
+            rebuildSearchIndex(db);
+
+            db.delete(INDEXES_TABLE_NAME, INDEXED_COLUMN + " LIKE ?",
+                    new String[]{SEARCH_INDEX_PREFIX + "%"});
+            for (String column : needed) {
+                db.execSQL("INSERT INTO " + INDEXES_TABLE_NAME + " (" + INDEXED_COLUMN
+                        + ") VALUES (?)", new Object[]{SEARCH_INDEX_PREFIX + column});
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            // e.g. a build of SQLite without FTS4; searches just go on scanning the table
+            Log.e(ExternalDataUtil.LOGGER_NAME, "Unable to create the search index of "
+                    + dataSetName, e);
+            return 0;
+        } finally {
+            db.endTransaction();
+        }
+        return 1;
+    }
+
+    private static void createIndexesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + INDEXES_TABLE_NAME + " (" + INDEXED_COLUMN
+                + " text primary key)");
+    }
+
+    /**
+     * @return the columns in the search table, or an empty set if the dataset has none
+     */
+    public static Set<String> getSearchIndexColumns(SQLiteDatabase db) {
+        Set<String> columns = new TreeSet<String>();
+        if (!queryColumn(db, "SELECT name FROM sqlite_master WHERE type = 'table' AND name = '"
+                + INDEXES_TABLE_NAME + "'", 0).isEmpty()) {
+            for (String column : queryColumn(db, "SELECT " + INDEXED_COLUMN + " FROM "
+                    + INDEXES_TABLE_NAME, 0)) {
+                if (column.startsWith(SEARCH_INDEX_PREFIX)) {
+                    columns.add(column.substring(SEARCH_INDEX_PREFIX.length()));
+                }
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Until {@link #stopUpdatingSearchIndex(SQLiteDatabase)}, keeps the search table, if there is
+     * one, in line with the rows inserted, updated or deleted through this connection. Each
+     * changed row is deleted from the search table before the change, while the data table
+     * still holds the text it was indexed with, and inserted again after it, so the rest of the
+     * index is left alone. Updates that only change columns the search table doesn't cover, such
+     * as the sort column, don't touch it.
+     */
+    public static void startUpdatingSearchIndex(SQLiteDatabase db) {
+        Set<String> columns = getSearchIndexColumns(db);
+        if (columns.isEmpty()) {
+            return;
+        }
+
+        StringBuilder names = new StringBuilder();
+        StringBuilder newValues = new StringBuilder();
+        for (String column : columns) {
+            String separator = names.length() == 0 ? "" : ", ";
+            names.append(separator).append(column);
+            newValues.append(separator).append("new.").append(column);
+        }
+        String table = ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME;
+        String delete = " BEGIN DELETE FROM " + SEARCH_TABLE_NAME
+                + " WHERE docid = old.rowid; END";
+        String insert = " BEGIN INSERT INTO " + SEARCH_TABLE_NAME + " (docid, " + names
+                + ") VALUES (new.rowid, " + newValues + "); END";
+
+        // temporary triggers only last as long as the connection
+        db.execSQL("CREATE TEMP TRIGGER IF NOT EXISTS " + BEFORE_UPDATE_TRIGGER
+                + " BEFORE UPDATE OF " + names + " ON " + table + delete);
+        db.execSQL("CREATE TEMP TRIGGER IF NOT EXISTS " + BEFORE_DELETE_TRIGGER
+                + " BEFORE DELETE ON " + table + delete);
+        db.execSQL("CREATE TEMP TRIGGER IF NOT EXISTS " + AFTER_UPDATE_TRIGGER
+                + " AFTER UPDATE OF " + names + " ON " + table + insert);
+        db.execSQL("CREATE TEMP TRIGGER IF NOT EXISTS " + AFTER_INSERT_TRIGGER
+                + " AFTER INSERT ON " + table + insert);
+    }
+
+    public static void stopUpdatingSearchIndex(SQLiteDatabase db) {
+        for (String trigger : new String[]{BEFORE_UPDATE_TRIGGER, BEFORE_DELETE_TRIGGER,
+                AFTER_UPDATE_TRIGGER, AFTER_INSERT_TRIGGER}) {
+            db.execSQL("DROP TRIGGER IF EXISTS temp." + trigger);
+        }
+    }
+
+    private static void rebuildSearchIndex(SQLiteDatabase db) {
+        db.execSQL("INSERT INTO " + SEARCH_TABLE_NAME + "(" + SEARCH_TABLE_NAME
+                + ") VALUES ('rebuild')");
+    }
+
+    /**
+     * @return the columns that already lead an index, such as the "_key" ones
+     */
+    private static Set<String> getIndexedColumns(SQLiteDatabase db) {
+        Set<String> indexedColumns = new HashSet<String>();
+        Set<String> indexes = queryColumn(db,
+                "PRAGMA index_list(" + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + ")", 1);
+        for (String index : indexes) {
+            Cursor c = db.rawQuery("PRAGMA index_info(\"" + index + "\")", null);
+            try {
+                // the first row is the leading column
+                if (c.moveToFirst()) {
+                    indexedColumns.add(c.getString(c.getColumnIndex("name")));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return indexedColumns;
+    }
+
+    private static Set<String> queryColumn(SQLiteDatabase db, String sql, int columnIndex) {
+        Set<String> values = new HashSet<String>();
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            while (c.moveToNext()) {
+                values.add(c.getString(columnIndex));
+            }
+        } finally {
+            c.close();
+        }
+        return values;
+    }
+}
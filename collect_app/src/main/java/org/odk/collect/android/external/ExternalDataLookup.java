@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Looks up single values in one imported dataset, for pulldata(), and remembers which columns
+ * its search table covers, for search().
+ *
+ * JavaRosa evaluates every calculate again whenever anything it might depend on changes, so the
+ * same handful of lookups are made over and over. Each (queried column, reference column) pair
+ * gets one compiled statement that is reused for every lookup, and the most recent results are
+ * kept, including the lookups that found nothing. Everything is dropped by {@link #close()}, which
+ * the {@link ExternalDataManager} calls when the dataset is imported again.
+ */
+public class ExternalDataLookup {
+
+    private static final int MAX_CACHED_RESULTS = 1000;
+
+    // log the hit rate every this many lookups
+    private static final int STATS_INTERVAL = 500;
+
+    // cached for a reference value with no row in the dataset
+    private static final Object NOT_FOUND = new Object();
+
+    private final String dataSetName;
+    private final SQLiteDatabase db;
+    private final Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+    private final LruCache<String, Object> results =
+            new LruCache<String, Object>(MAX_CACHED_RESULTS);
+    private Set<String> searchIndexColumns;
+
+    public ExternalDataLookup(String dataSetName, SQLiteDatabase db) {
+        this.dataSetName = dataSetName;
+        this.db = db;
+    }
+
+    /**
+     * @return the value of the queried column in the first row where the reference column has the
+     * reference value, "" if that value is null, or null if there is no such row
+     */
+    public synchronized String lookup(String queriedColumn, String referenceColumn,
+            String referenceValue) {
+        String statementKey = queriedColumn + "\n" + referenceColumn;
+        String resultKey = statementKey + "\n" + referenceValue;
+
+        Object result = results.get(resultKey);
+        if (result == null) {
+            SQLiteStatement statement = statements.get(statementKey);
+            if (statement == null) {
+                statement = db.compileStatement("SELECT "
+                        + ExternalDataUtil.toSafeColumnName(queriedColumn) + " FROM "
+                        + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + " WHERE "
+                        + ExternalDataUtil.toSafeColumnName(referenceColumn) + " = ? LIMIT 1");
+                statements.put(statementKey, statement);
+            }
+
+            statement.bindString(1, referenceValue);
+            try {
+                result = ExternalDataUtil.nullSafe(statement.simpleQueryForString());
+            } catch (SQLiteDoneException e) {
+                result = NOT_FOUND;
+            } finally {
+                statement.clearBindings();
+            }
+            results.put(resultKey, result);
+        }
+
+        if ((results.hitCount() + results.missCount()) % STATS_INTERVAL == 0) {
+            logStats();
+        }
+        return result == NOT_FOUND ? null : (String) result;
+    }
+
+    /**
+     * @return the columns in the dataset's search table, read from the database the first time
+     * only, since search() is evaluated again as often as the calculates are
+     */
+    public synchronized Set<String> getSearchIndexColumns() {
+        if (searchIndexColumns == null) {
+            searchIndexColumns = ExternalDataIndexer.getSearchIndexColumns(db);
+        }
+        return searchIndexColumns;
+    }
+
+    /**
+     * Releases the compiled statements and forgets every result.
+     */
+    public synchronized void close() {
+        logStats();
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+        results.evictAll();
+        searchIndexColumns = null;
+    }
+
+    private void logStats() {
+        int hits = results.hitCount();
+        int lookups = hits + results.missCount();
+        if (lookups > 0) {
+            Log.i(ExternalDataUtil.LOGGER_NAME, "pulldata() lookups in " + dataSetName + ": "
+                    + lookups + ", cache hits: " + hits + " (" + (100 * hits / lookups)
+                    + "%), statements: " + statements.size() + ", cached results: "
+                    + results.size());
+        }
+    }
+}
@@ -39,5 +39,21 @@ public interface ExternalDataManager {
      */
     ExternalSQLiteOpenHelper getDatabase(String dataSetName, boolean required);
 
+    /**
+     * Returns the {@link ExternalDataLookup} pulldata() and search() use for a dataset
+     *
+     * @param dataSetName the name of the imported .csv
+     * @return the lookup, or null if the dataset has not been imported
+     */
+    ExternalDataLookup getLookup(String dataSetName);
+
+    /**
+     * Closes the database of a dataset and drops everything cached from it, because the dataset
+     * has just been imported again.
+     *
+     * @param dataSetName the name of the imported .csv
+     */
+    void invalidate(String dataSetName);
+
     void close();
 }
@@ -22,6 +22,7 @@ import android.util.Log;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.SharedDataSetStore;
 import org.odk.collect.android.exception.ExternalDataException;
 
 import java.io.File;
@@ -38,6 +39,8 @@ public class ExternalDataManagerImpl implements ExternalDataManager {
     private Map<String, ExternalSQLiteOpenHelper> dbMap =
             new HashMap<String, ExternalSQLiteOpenHelper>();
 
+    private Map<String, ExternalDataLookup> lookupMap = new HashMap<String, ExternalDataLookup>();
+
     private final File mediaFolder;
 
     public ExternalDataManagerImpl(File mediaFolder) {
@@ -45,7 +48,8 @@ public class ExternalDataManagerImpl implements ExternalDataManager {
     }
 
     @Override
-    public ExternalSQLiteOpenHelper getDatabase(String dataSetName, boolean required) {
+    public synchronized ExternalSQLiteOpenHelper getDatabase(String dataSetName,
+            boolean required) {
         ExternalSQLiteOpenHelper sqLiteOpenHelper = dbMap.get(dataSetName);
         if (sqLiteOpenHelper == null) {
             if (mediaFolder == null) {
@@ -57,7 +61,12 @@ public class ExternalDataManagerImpl implements ExternalDataManager {
                     return null;
                 }
             } else {
-                File dbFile = new File(mediaFolder, dataSetName + ".db");
+                File dbFile = SharedDataSetStore.getInstance().getDatabaseFile(mediaFolder,
+                        dataSetName);
+                if (dbFile == null) {
+                    // imported before datasets were shared between forms
+                    dbFile = new File(mediaFolder, dataSetName + ".db");
+                }
                 if (!dbFile.exists()) {
                     String msg = Collect.getInstance().getString(
                             R.string.ext_import_csv_missing_error, dataSetName, dataSetName);
@@ -76,13 +85,53 @@ public class ExternalDataManagerImpl implements ExternalDataManager {
         return sqLiteOpenHelper;
     }
 
+    @Override
+    public synchronized ExternalDataLookup getLookup(String dataSetName) {
+        ExternalDataLookup lookup = lookupMap.get(dataSetName);
+        if (lookup == null) {
+            ExternalSQLiteOpenHelper sqLiteOpenHelper = getDatabase(dataSetName, false);
+            if (sqLiteOpenHelper == null) {
+                return null;
+            }
+            lookup = new ExternalDataLookup(dataSetName, sqLiteOpenHelper.getReadableDatabase());
+            lookupMap.put(dataSetName, lookup);
+        }
+        return lookup;
+    }
+
+    @Override
+    public void invalidate(String dataSetName) {
+        // the choice lists run their queries again when they are next used. Done before taking
+        // the lock, since a list being read holds its own lock while it asks for the database
+        ExternalChoiceList.closeAll();
+        synchronized (this) {
+            ExternalDataLookup lookup = lookupMap.remove(dataSetName);
+            if (lookup != null) {
+                lookup.close();
+            }
+            ExternalSQLiteOpenHelper sqLiteOpenHelper = dbMap.remove(dataSetName);
+            if (sqLiteOpenHelper != null) {
+                Log.w(ExternalDataUtil.LOGGER_NAME, "Closing database handler of re-imported "
+                        + dataSetName + ":" + sqLiteOpenHelper.toString());
+                sqLiteOpenHelper.close();
+            }
+        }
+    }
+
     @Override
     public void close() {
-        if (dbMap != null) {
-            for (ExternalSQLiteOpenHelper externalSQLiteOpenHelper : dbMap.values()) {
-                Log.w(ExternalDataUtil.LOGGER_NAME,
-                        "Closing database handler:" + externalSQLiteOpenHelper.toString());
-                externalSQLiteOpenHelper.close();
+        ExternalChoiceList.closeAll();
+        synchronized (this) {
+            for (ExternalDataLookup lookup : lookupMap.values()) {
+                lookup.close();
+            }
+            lookupMap.clear();
+            if (dbMap != null) {
+                for (ExternalSQLiteOpenHelper externalSQLiteOpenHelper : dbMap.values()) {
+                    Log.w(ExternalDataUtil.LOGGER_NAME,
+                            "Closing database handler:" + externalSQLiteOpenHelper.toString());
+                    externalSQLiteOpenHelper.close();
+                }
             }
         }
     }
@@ -29,4 +29,9 @@ import java.util.Map;
 public interface ExternalDataReader {
 
     void doImport(Map<String, File> externalDataMap);
+
+    /**
+     * Called by the import of a dataset to report how far it has got.
+     */
+    void onProgress(File dataSetFile, String message);
 }
@@ -21,12 +21,22 @@ package org.odk.collect.android.external;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
-import org.apache.commons.io.FileUtils;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FileFingerprintStore;
+import org.odk.collect.android.database.SharedDataSetStore;
 import org.odk.collect.android.tasks.FormLoaderTask;
 
 import java.io.File;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Author: Meletis Margaritis
@@ -35,76 +45,210 @@ import java.util.Map;
  */
 public class ExternalDataReaderImpl implements ExternalDataReader {
 
+    // each csv goes into its own database, so they can be imported side by side
+    private static final ThreadPoolExecutor sImportExecutor;
+
+    static {
+        int threads = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 3));
+        sImportExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        sImportExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private FormLoaderTask formLoaderTask;
 
+    // the last progress message of each import that is still running, in the order they started
+    private final Map<String, String> progressMessages = new LinkedHashMap<String, String>();
+
     public ExternalDataReaderImpl(FormLoaderTask formLoaderTask) {
         this.formLoaderTask = formLoaderTask;
     }
 
     @Override
     public void doImport(Map<String, File> externalDataMap) {
+        List<Callable<Void>> imports = new ArrayList<Callable<Void>>();
         for (Map.Entry<String, File> stringFileEntry : externalDataMap.entrySet()) {
-            String dataSetName = stringFileEntry.getKey();
-            File dataSetFile = stringFileEntry.getValue();
+            final String dataSetName = stringFileEntry.getKey();
+            final File dataSetFile = stringFileEntry.getValue();
             if (dataSetFile.exists()) {
-                File dbFile = new File(dataSetFile.getParentFile().getAbsolutePath(),
-                        dataSetName + ".db");
-                if (dbFile.exists()) {
-                    // this means the someone updated the csv file, so we need to reload it
-                    boolean deleted = dbFile.delete();
-                    if (!deleted) {
-                        Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName()
-                                + " has changed but we could not delete the previous DB at "
-                                + dbFile.getAbsolutePath());
-                        continue;
+                imports.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        importDataSet(dataSetName, dataSetFile);
+                        return null;
                     }
-                }
-                ExternalSQLiteOpenHelper externalSQLiteOpenHelper = new ExternalSQLiteOpenHelper(
-                        dbFile);
-                externalSQLiteOpenHelper.importFromCSV(dataSetFile, this, formLoaderTask);
+                });
+            }
+        }
 
-                if (formLoaderTask.isCancelled()) {
-                    Log.w(ExternalDataUtil.LOGGER_NAME,
-                            "The import was cancelled, so we need to rollback.");
+        if (imports.size() == 1) {
+            try {
+                imports.get(0).call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
 
-                    // we need to drop the database file since it might be partially populated.
-                    // It will be re-created next time.
+        long start = System.currentTimeMillis();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (Callable<Void> task : imports) {
+            futures.add(sImportExecutor.submit(task));
+        }
 
-                    Log.w(ExternalDataUtil.LOGGER_NAME, "Closing database to be deleted " + dbFile);
+        // wait for every import, even once one has failed or the load is cancelled, so that none
+        // is left writing to its database; then report the first failure
+        RuntimeException failure = null;
+        boolean interrupted = false;
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (failure == null) {
+                        failure = cause instanceof RuntimeException ? (RuntimeException) cause
+                                : new RuntimeException(cause);
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        Log.i(ExternalDataUtil.LOGGER_NAME, "Imported " + imports.size() + " datasets in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
 
-                    // then close the database
-                    SQLiteDatabase db = externalSQLiteOpenHelper.getReadableDatabase();
-                    db.close();
+    private void importDataSet(String dataSetName, File dataSetFile) {
+        if (formLoaderTask.isCancelled()) {
+            return;
+        }
 
-                    // the physically delete the db.
-                    try {
-                        FileUtils.forceDelete(dbFile);
-                        Log.w(ExternalDataUtil.LOGGER_NAME, "Deleted " + dbFile.getName());
-                    } catch (IOException e) {
-                        Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage(), e);
-                    }
+        try {
+            File mediaFolder = dataSetFile.getParentFile();
+            String md5Hash = FileFingerprintStore.getInstance().getMd5Hash(dataSetFile);
+            SharedDataSetStore store = SharedDataSetStore.getInstance();
+            if (md5Hash == null || !store.ensureDatasetsFolder()) {
+                Log.e(ExternalDataUtil.LOGGER_NAME, "Unable to import " + dataSetFile.getName()
+                        + " into " + SharedDataSetStore.DATASETS_PATH);
+                return;
+            }
 
-                    // then just exit and do not process any other CSVs.
-                    return;
+            // the database of a form that is still open has to be closed before it can be moved
+            invalidate(dataSetName);
+
+            synchronized (store.getImportLock(md5Hash)) {
+                // another form may ship the same csv, in which case it is already imported
+                if (store.acquire(mediaFolder, dataSetName, md5Hash) != null) {
+                    Log.i(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName()
+                            + " is shared with a form that already imported it");
+                } else if (!updateDataSet(mediaFolder, dataSetName, dataSetFile, md5Hash)) {
+                    File dbFile = store.getDatabaseFile(md5Hash);
+                    new ExternalSQLiteOpenHelper(dbFile).importFromCSV(dataSetFile, this,
+                            formLoaderTask);
+                    if (!formLoaderTask.isCancelled()) {
+                        store.acquire(mediaFolder, dataSetName, md5Hash);
+                    }
+                }
+            }
 
+            // a form that is still open may have cached lookups in the previous data
+            invalidate(dataSetName);
+
+            if (formLoaderTask.isCancelled()) {
+                // importFromCSV() has already thrown away the partially populated database,
+                // and updateFromCSV() has rolled back, so the csv will be read again next
+                // time.
+                Log.w(ExternalDataUtil.LOGGER_NAME, "The import was cancelled; "
+                        + dataSetFile.getName() + " will be read again next time");
+            } else {
+                // rename the dataSetFile into "dataSetFile.csv.imported" in order not to be
+                // loaded again
+                File importedFile = new File(dataSetFile.getParentFile(),
+                        dataSetFile.getName() + ".imported");
+                boolean renamed = dataSetFile.renameTo(importedFile);
+                if (!renamed) {
+                    Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName()
+                            + " could not be renamed to be archived. It will be re-imported "
+                            + "again! :(");
                 } else {
-                    // rename the dataSetFile into "dataSetFile.csv.imported" in order not to be
-                    // loaded again
-                    File importedFile = new File(dataSetFile.getParentFile(),
-                            dataSetFile.getName() + ".imported");
-                    boolean renamed = dataSetFile.renameTo(importedFile);
-                    if (!renamed) {
-                        Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName()
-                                + " could not be renamed to be archived. It will be re-imported "
-                                + "again! :(");
-                    } else {
-                        Log.e(ExternalDataUtil.LOGGER_NAME,
-                                dataSetFile.getName() + " was renamed to "
-                                        + importedFile.getName());
-                    }
+                    Log.e(ExternalDataUtil.LOGGER_NAME,
+                            dataSetFile.getName() + " was renamed to "
+                                    + importedFile.getName());
                 }
             }
+        } finally {
+            synchronized (progressMessages) {
+                progressMessages.remove(dataSetFile.getName());
+            }
         }
     }
 
+    private void invalidate(String dataSetName) {
+        ExternalDataManager externalDataManager = Collect.getInstance().getExternalDataManager();
+        if (externalDataManager != null) {
+            externalDataManager.invalidate(dataSetName);
+        }
+    }
+
+    /**
+     * If someone updated the csv file and the previous version is not used by any other form,
+     * applies just the rows that changed to the previous database.
+     *
+     * @return false if the csv has to be imported from scratch
+     */
+    private boolean updateDataSet(File mediaFolder, String dataSetName, File dataSetFile,
+            String md5Hash) {
+        SharedDataSetStore store = SharedDataSetStore.getInstance();
+        File updating = store.takeOver(mediaFolder, dataSetName, md5Hash);
+        if (updating == null) {
+            return false;
+        }
+
+        if (!new ExternalSQLiteOpenHelper(updating).updateFromCSV(dataSetFile, this,
+                formLoaderTask)) {
+            SQLiteDatabase.deleteDatabase(updating);
+            return false;
+        }
+        if (formLoaderTask.isCancelled()) {
+            // updateFromCSV() has rolled back
+            store.restore(updating, mediaFolder, dataSetName);
+        } else if (updating.renameTo(store.getDatabaseFile(md5Hash))) {
+            store.acquire(mediaFolder, dataSetName, md5Hash);
+        } else {
+            Log.e(ExternalDataUtil.LOGGER_NAME, "Could not move the updated "
+                    + dataSetFile.getName() + " into " + SharedDataSetStore.DATASETS_PATH);
+            SQLiteDatabase.deleteDatabase(updating);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Shows the progress of all the imports running side by side, one line each.
+     */
+    @Override
+    public void onProgress(File dataSetFile, String message) {
+        StringBuilder combined = new StringBuilder();
+        synchronized (progressMessages) {
+            progressMessages.put(dataSetFile.getName(), message);
+            for (String progressMessage : progressMessages.values()) {
+                if (combined.length() > 0) {
+                    combined.append("\n");
+                }
+                combined.append(progressMessage);
+            }
+        }
+        formLoaderTask.publishExternalDataLoadingProgress(combined.toString());
+    }
 }
@@ -138,11 +138,15 @@ public final class ExternalDataUtil {
         }
     }
 
-    public static ArrayList<SelectChoice> populateExternalChoices(FormEntryPrompt formEntryPrompt,
+    /**
+     * @return the choices, which are read from the dataset as they are needed if the select has
+     * nothing but the search() choices
+     */
+    public static List<SelectChoice> populateExternalChoices(FormEntryPrompt formEntryPrompt,
             XPathFuncExpr xPathFuncExpr) {
         try {
             List<SelectChoice> selectChoices = formEntryPrompt.getSelectChoices();
-            ArrayList<SelectChoice> returnedChoices = new ArrayList<SelectChoice>();
+            List<SelectChoice> returnedChoices = new ArrayList<SelectChoice>();
             for (SelectChoice selectChoice : selectChoices) {
                 String value = selectChoice.getValue();
                 if (isAnInteger(value)) {
@@ -173,12 +177,14 @@ public final class ExternalDataUtil {
                                     value, imageColumn));
 
                     Object eval = xPathFuncExpr.eval(formInstance, evaluationContext);
-                    if (eval.getClass().isAssignableFrom(ArrayList.class)) {
+                    if (eval instanceof List) {
                         @SuppressWarnings("unchecked")
-                        List<SelectChoice> dynamicChoices = (ArrayList<SelectChoice>) eval;
-                        for (SelectChoice dynamicChoice : dynamicChoices) {
-                            returnedChoices.add(dynamicChoice);
+                        List<SelectChoice> dynamicChoices = (List<SelectChoice>) eval;
+                        if (returnedChoices.isEmpty() && selectChoices.size() == 1) {
+                            // don't read all of them in
+                            return dynamicChoices;
                         }
+                        returnedChoices.addAll(dynamicChoices);
                     } else {
                         throw new ExternalDataException(
                                 Collect.getInstance().getString(R.string.ext_search_return_error,
@@ -273,24 +279,6 @@ public final class ExternalDataUtil {
         return false;
     }
 
-    public static String[] fillUpNullValues(String[] row, String[] headerRow) {
-        String[] fullRow = new String[headerRow.length];
-
-        for (int i = 0; i < fullRow.length; i++) {
-            if (i < row.length) {
-                String value = row[i];
-                if (value == null) {
-                    value = "";
-                }
-                fullRow[i] = value;
-            } else {
-                fullRow[i] = "";
-            }
-        }
-
-        return fullRow;
-    }
-
     public static String nullSafe(String value) {
         return value == null ? "" : value;
     }
@@ -18,8 +18,10 @@
 
 package org.odk.collect.android.external;
 
-import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import org.odk.collect.android.R;
@@ -27,6 +29,7 @@ import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.ODKSQLiteOpenHelper;
 import org.odk.collect.android.exception.ExternalDataException;
 import org.odk.collect.android.tasks.FormLoaderTask;
+import org.odk.collect.android.utilities.CsvTokenizer;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -37,7 +40,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import au.com.bytecode.opencsv.CSVReader;
 
 /**
  * Author: Meletis Margaritis
@@ -51,62 +53,446 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
     private static final char QUOTE_CHAR = "\"".charAt(0);
     private static final char ESCAPE_CHAR = "\0".charAt(0);
 
+    // rows inserted per transaction during an import
+    private static final int IMPORT_BATCH_SIZE = 10000;
+
+    private final File dbFile;
     private File dataSetFile;
     private ExternalDataReader externalDataReader;
     private FormLoaderTask formLoaderTask;
 
     public ExternalSQLiteOpenHelper(File dbFile) {
         super(dbFile.getParentFile().getAbsolutePath(), dbFile.getName(), null, VERSION);
+        this.dbFile = dbFile;
     }
 
+    /**
+     * Imports the csv into a new database.
+     *
+     * The rows are inserted into a temporary file through a single compiled statement, in
+     * batches of {@link #IMPORT_BATCH_SIZE} rows and with journaling and syncing turned off, and
+     * the indexes are only built once all the rows are in. Since the temporary file is thrown
+     * away if anything goes wrong, there is nothing for a journal to protect: the database only
+     * takes its real name once the import has completed, so it is never seen half populated.
+     * If the import is cancelled, no database is left behind.
+     */
     public void importFromCSV(File dataSetFile, ExternalDataReader externalDataReader,
             FormLoaderTask formLoaderTask) {
         this.dataSetFile = dataSetFile;
         this.externalDataReader = externalDataReader;
         this.formLoaderTask = formLoaderTask;
 
-        SQLiteDatabase writableDatabase = null;
+        File tempFile = new File(dbFile.getParentFile(), dbFile.getName() + ".importing");
+        SQLiteDatabase.deleteDatabase(tempFile);
+
+        long start = System.currentTimeMillis();
+        boolean completed = false;
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(tempFile, null);
         try {
-            writableDatabase = getWritableDatabase();
+            relaxForImport(db);
+            completed = onCreateNamed(db, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+            if (completed) {
+                db.setVersion(VERSION);
+            }
+        } catch (Exception e) {
+            throw new ExternalDataException(
+                    Collect.getInstance().getString(R.string.ext_import_generic_error,
+                            dataSetFile.getName(), e.getMessage()), e);
         } finally {
-            if (writableDatabase != null) {
-                writableDatabase.close();
+            db.close();
+            if (!completed) {
+                SQLiteDatabase.deleteDatabase(tempFile);
             }
         }
+
+        if (!completed) {
+            // cancelled; the partial database is already gone
+            return;
+        }
+        if (dbFile.exists()) {
+            SQLiteDatabase.deleteDatabase(dbFile);
+        }
+        if (!tempFile.renameTo(dbFile)) {
+            SQLiteDatabase.deleteDatabase(tempFile);
+            throw new ExternalDataException(
+                    Collect.getInstance().getString(R.string.ext_import_generic_error,
+                            dataSetFile.getName(), "unable to rename " + tempFile.getName()));
+        }
+        Log.i(ExternalDataUtil.LOGGER_NAME, "Imported " + dataSetFile.getName() + " in "
+                + (System.currentTimeMillis() - start) + " ms");
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        if (externalDataReader == null) {
-            // this means that the function handler needed the database through calling
-            // getReadableDatabase() --> getWritableDatabase(),
-            // but this is not allowed, so just return;
-            Log.e(ExternalDataUtil.LOGGER_NAME,
-                    "The function handler triggered this external data population. This is not "
-                            + "good.");
-            return;
+        // the database is populated by importFromCSV(), before anything opens it through here.
+        // this means that the function handler needed the database through calling
+        // getReadableDatabase() --> getWritableDatabase(),
+        // but this is not allowed, so just return;
+        Log.e(ExternalDataUtil.LOGGER_NAME,
+                "The function handler triggered this external data population. This is not "
+                        + "good.");
+    }
+
+    /**
+     * Brings the existing database up to date with a changed csv by applying only the rows that
+     * were inserted, updated or deleted, all in one transaction.
+     *
+     * Rows are matched on the first column whose name ends in "_key", the columns that already
+     * get an index. The delta can only be applied if the csv has the same columns as the table
+     * and every row has a distinct, non-empty key; otherwise nothing is changed and false is
+     * returned, so that the caller can fall back to a full import. A cancelled update rolls back
+     * and leaves the previous data in place.
+     *
+     * @return true if the database now matches the csv, or the update was cancelled
+     */
+    public boolean updateFromCSV(File dataSetFile, ExternalDataReader externalDataReader,
+            FormLoaderTask formLoaderTask) {
+        this.dataSetFile = dataSetFile;
+        this.externalDataReader = externalDataReader;
+        this.formLoaderTask = formLoaderTask;
+
+        if (!dbFile.exists()) {
+            return false;
         }
 
+        long start = System.currentTimeMillis();
+        SQLiteDatabase db = null;
         try {
-            onCreateNamed(db, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+            db = SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null,
+                    SQLiteDatabase.OPEN_READWRITE);
+            if (db.getVersion() != VERSION) {
+                return false;
+            }
+            boolean updated = applyDelta(db, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+            if (updated) {
+                Log.i(ExternalDataUtil.LOGGER_NAME, "Updated " + dbFile.getName() + " from "
+                        + dataSetFile.getName() + " in " + (System.currentTimeMillis() - start)
+                        + " ms");
+            }
+            return updated;
         } catch (Exception e) {
-            throw new ExternalDataException(
-                    Collect.getInstance().getString(R.string.ext_import_generic_error,
-                            dataSetFile.getName(), e.getMessage()), e);
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Unable to update " + dbFile.getName()
+                    + " in place; it will be imported again", e);
+            return false;
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    private boolean applyDelta(SQLiteDatabase db, String tableName) throws Exception {
+        CsvTokenizer reader = null;
+        SQLiteStatement update = null;
+        SQLiteStatement insert = null;
+        SQLiteStatement seen = null;
+        try {
+            reader = new CsvTokenizer(new InputStreamReader(new FileInputStream(dataSetFile),
+                    "UTF-8"), DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
+            String[] headerRow = reader.next() ? reader.getFields() : null;
+            if (!ExternalDataUtil.containsAnyData(headerRow)) {
+                return false;
+            }
+
+            // work out the columns the same way the import does
+            Map<String, String> columnNamesCache = new HashMap<String, String>();
+            List<String> columns = new ArrayList<String>();
+            int[] bindIndexes = new int[headerRow.length];
+            int sortBindIndex = 0;
+            int keyIndex = -1;
+            String keyColumn = null;
+            for (int i = 0; i < headerRow.length; i++) {
+                String columnName = headerRow[i].trim();
+                if (columnName.length() == 0) {
+                    continue;
+                }
+                String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName,
+                        columnNamesCache);
+                if (columns.contains(safeColumnName)) {
+                    return false;
+                }
+                columns.add(safeColumnName);
+                bindIndexes[i] = columns.size();
+                if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
+                    sortBindIndex = columns.size();
+                }
+                if (keyColumn == null && headerRow[i].endsWith("_key")) {
+                    keyIndex = i;
+                    keyColumn = safeColumnName;
+                }
+            }
+            boolean sortColumnAlreadyPresent = sortBindIndex != 0;
+            if (!sortColumnAlreadyPresent) {
+                columns.add(ExternalDataUtil.SORT_COLUMN_NAME);
+                sortBindIndex = columns.size();
+            }
+
+            if (keyColumn == null) {
+                Log.i(ExternalDataUtil.LOGGER_NAME,
+                        dataSetFile.getName() + " has no _key column to match rows on");
+                return false;
+            }
+            if (!columns.equals(getColumns(db, tableName))) {
+                Log.i(ExternalDataUtil.LOGGER_NAME,
+                        "The columns of " + dataSetFile.getName() + " have changed");
+                return false;
+            }
+            if (hasDuplicateKeys(db, tableName, keyColumn)) {
+                // a full import allows them, but the delta would keep every copy of the row
+                Log.i(ExternalDataUtil.LOGGER_NAME, "The previous import of "
+                        + dataSetFile.getName() + " has more than one row with the same key");
+                return false;
+            }
+            int keyBindIndex = bindIndexes[keyIndex];
+
+            // ?1..?n are the values of the row; the key is one of them. A sort column the import
+            // added only holds the position of the row, which shifts whenever a row is inserted
+            // or deleted above it, so it is left out of the update and set once at the end
+            int updateColumnCount = sortColumnAlreadyPresent ? columns.size() : columns.size() - 1;
+            StringBuilder assignments = new StringBuilder();
+            StringBuilder unchanged = new StringBuilder();
+            StringBuilder insertColumns = new StringBuilder();
+            StringBuilder insertParameters = new StringBuilder();
+            for (int i = 0; i < columns.size(); i++) {
+                String column = columns.get(i);
+                String parameter = "?" + (i + 1);
+                String separator = i == 0 ? "" : ", ";
+                if (i < updateColumnCount) {
+                    assignments.append(separator).append(column).append(" = ")
+                            .append(parameter);
+                    // compare case-sensitively, whatever the collation of the column
+                    unchanged.append(i == 0 ? "" : " AND ").append(column).append(" IS ")
+                            .append(parameter).append(" COLLATE BINARY");
+                }
+                insertColumns.append(separator).append(column);
+                insertParameters.append(separator).append(parameter);
+            }
+            String keyParameter = "?" + keyBindIndex;
+
+            db.execSQL("CREATE TEMP TABLE IF NOT EXISTS seen_keys "
+                    + "(k text collate nocase primary key, pos integer)");
+            db.execSQL("DELETE FROM temp.seen_keys");
+
+            update = db.compileStatement("UPDATE " + tableName + " SET " + assignments
+                    + " WHERE " + keyColumn + " = " + keyParameter + " AND NOT (" + unchanged
+                    + ")");
+            insert = db.compileStatement("INSERT INTO " + tableName + " (" + insertColumns
+                    + ") SELECT " + insertParameters + " WHERE NOT EXISTS (SELECT 1 FROM "
+                    + tableName + " WHERE " + keyColumn + " = " + keyParameter + ")");
+            seen = db.compileStatement("INSERT INTO temp.seen_keys (k, pos) VALUES (?, ?)");
+
+            int rowCount = 0;
+            int updated = 0;
+            int inserted = 0;
+            int deleted = 0;
+            int moved = 0;
+            boolean applicable = true;
+
+            ExternalDataIndexer.startUpdatingSearchIndex(db);
+            db.beginTransaction();
+            try {
+                boolean hasRow = reader.next();
+                while (hasRow && !isCancelled()) {
+                    // SCTO-894 - skip empty lines; short ones read as filled up with "", as the
+                    // import does
+                    if (!reader.containsAnyData()) {
+                        hasRow = reader.next();
+                        continue;
+                    }
+
+                    String key = reader.getField(keyIndex);
+                    if (key.length() == 0) {
+                        Log.i(ExternalDataUtil.LOGGER_NAME,
+                                dataSetFile.getName() + " has a row without a key");
+                        applicable = false;
+                        break;
+                    }
+                    seen.bindString(1, key);
+                    seen.bindLong(2, rowCount + 1);
+                    try {
+                        seen.executeInsert();
+                    } catch (SQLiteConstraintException e) {
+                        Log.i(ExternalDataUtil.LOGGER_NAME,
+                                dataSetFile.getName() + " has more than one row with key " + key);
+                        applicable = false;
+                        break;
+                    }
+
+                    if (!sortColumnAlreadyPresent) {
+                        insert.bindLong(sortBindIndex, rowCount + 1);
+                    }
+                    for (int i = 0; i < headerRow.length; i++) {
+                        int bindIndex = bindIndexes[i];
+                        if (bindIndex == 0) {
+                            continue;
+                        }
+                        String columnValue = reader.getField(i);
+                        if (bindIndex == sortBindIndex) {
+                            try {
+                                double sortValue = Double.parseDouble(columnValue);
+                                update.bindDouble(bindIndex, sortValue);
+                                insert.bindDouble(bindIndex, sortValue);
+                            } catch (NumberFormatException e) {
+                                // let the full import report it
+                                applicable = false;
+                                break;
+                            }
+                        } else {
+                            update.bindString(bindIndex, columnValue);
+                            insert.bindString(bindIndex, columnValue);
+                        }
+                    }
+                    if (!applicable) {
+                        break;
+                    }
+
+                    updated += update.executeUpdateDelete();
+                    if (insert.executeInsert() != -1) {
+                        inserted++;
+                    }
+                    hasRow = reader.next();
+                    rowCount++;
+
+                    if (rowCount % 100 == 0) {
+                        onProgress(Collect.getInstance().getString(
+                                R.string.ext_import_progress_message,
+                                dataSetFile.getName(), " (" + rowCount + " records so far)"));
+                    }
+                }
+
+                if (applicable && !isCancelled()) {
+                    deleted = db.delete(tableName, keyColumn + " IS NULL OR " + keyColumn
+                            + " NOT IN (SELECT k FROM temp.seen_keys)", null);
+                    if (!sortColumnAlreadyPresent) {
+                        moved = renumber(db, tableName, keyColumn);
+                    }
+                    db.setTransactionSuccessful();
+                }
+            } finally {
+                db.endTransaction();
+                ExternalDataIndexer.stopUpdatingSearchIndex(db);
+                db.execSQL("DROP TABLE IF EXISTS temp.seen_keys");
+            }
+
+            if (!applicable) {
+                return false;
+            }
+            if (isCancelled()) {
+                Log.w(ExternalDataUtil.LOGGER_NAME,
+                        "User canceled reading data from " + dataSetFile);
+                onProgress(Collect.getInstance().getString(R.string.ext_import_cancelled_message));
+                return true;
+            }
+
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Applied " + dataSetFile.getName() + ": "
+                    + inserted + " inserted, " + updated + " updated, " + deleted
+                    + " deleted and " + moved + " moved out of " + rowCount + " rows");
+            onProgress(Collect.getInstance().getString(R.string.ext_import_completed_message));
+            return true;
+        } finally {
+            if (update != null) {
+                update.close();
+            }
+            if (insert != null) {
+                insert.close();
+            }
+            if (seen != null) {
+                seen.close();
+            }
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the sort column the import added to the position each row has in the csv, as
+     * recorded in temp.seen_keys, in one pass that only writes the rows that moved.
+     *
+     * @return the number of rows that moved
+     */
+    private static int renumber(SQLiteDatabase db, String tableName, String keyColumn) {
+        String position = "(SELECT pos FROM temp.seen_keys WHERE k = " + tableName + "."
+                + keyColumn + ")";
+        SQLiteStatement renumber = db.compileStatement("UPDATE " + tableName + " SET "
+                + ExternalDataUtil.SORT_COLUMN_NAME + " = " + position + " WHERE "
+                + ExternalDataUtil.SORT_COLUMN_NAME + " IS NOT " + position);
+        try {
+            return renumber.executeUpdateDelete();
+        } finally {
+            renumber.close();
+        }
+    }
+
+    private static boolean hasDuplicateKeys(SQLiteDatabase db, String tableName,
+            String keyColumn) {
+        Cursor c = db.rawQuery("SELECT 1 FROM " + tableName + " GROUP BY " + keyColumn
+                + " HAVING count(*) > 1 LIMIT 1", null);
+        try {
+            return c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return the names of the columns of the table, in order
+     */
+    private static List<String> getColumns(SQLiteDatabase db, String tableName) {
+        List<String> columns = new ArrayList<String>();
+        Cursor c = db.rawQuery("PRAGMA table_info(" + tableName + ")", null);
+        try {
+            int nameIndex = c.getColumnIndex("name");
+            while (c.moveToNext()) {
+                columns.add(c.getString(nameIndex));
+            }
+        } finally {
+            c.close();
+        }
+        return columns;
+    }
+
+    /**
+     * Turns off everything that only matters if the database has to survive a crash.
+     */
+    private void relaxForImport(SQLiteDatabase db) {
+        pragma(db, "PRAGMA journal_mode=OFF");
+        pragma(db, "PRAGMA locking_mode=EXCLUSIVE");
+        db.execSQL("PRAGMA synchronous=OFF");
+        db.execSQL("PRAGMA temp_store=MEMORY");
+    }
+
+    /**
+     * Runs a pragma that returns its new value, which execSQL() refuses to do.
+     */
+    private static void pragma(SQLiteDatabase db, String sql) {
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            c.moveToFirst();
+        } finally {
+            c.close();
         }
     }
 
-    private void onCreateNamed(SQLiteDatabase db, String tableName) throws Exception {
+    /**
+     * @return true if all the rows were imported, false if the import was cancelled
+     */
+    private boolean onCreateNamed(SQLiteDatabase db, String tableName) throws Exception {
         Log.w(ExternalDataUtil.LOGGER_NAME, "Reading data from '" + dataSetFile);
 
         onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message,
                 dataSetFile.getName(), ""));
 
-        CSVReader reader = null;
+        CsvTokenizer reader = null;
+        SQLiteStatement insert = null;
         try {
-            reader = new CSVReader(new InputStreamReader(new FileInputStream(dataSetFile), "UTF-8"),
-                    DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
-            String[] headerRow = reader.readNext();
+            reader = new CsvTokenizer(new InputStreamReader(new FileInputStream(dataSetFile),
+                    "UTF-8"), DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
+            String[] headerRow = reader.next() ? reader.getFields() : null;
 
             if (!ExternalDataUtil.containsAnyData(headerRow)) {
                 throw new ExternalDataException(
@@ -128,6 +514,13 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
             Map<String, String> columnNamesCache = new HashMap<String, String>();
 
             StringBuilder sb = new StringBuilder();
+            StringBuilder insertColumns = new StringBuilder();
+            StringBuilder insertParameters = new StringBuilder();
+
+            // the position each csv column is bound to in the insert, or 0 if it is skipped
+            int[] bindIndexes = new int[headerRow.length];
+            int bindCount = 0;
+            int sortBindIndex = 0;
 
             boolean sortColumnAlreadyPresent = false;
 
@@ -150,10 +543,22 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
                 } else {
                     sb.append(safeColumnName).append(" text collate nocase ");
                 }
+
+                bindIndexes[i] = ++bindCount;
+                if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
+                    sortBindIndex = bindCount;
+                }
+                insertColumns.append(bindCount > 1 ? ", " : "").append(safeColumnName);
+                insertParameters.append(bindCount > 1 ? ", ?" : "?");
             }
             if (!sortColumnAlreadyPresent) {
                 sb.append(", ");
                 sb.append(ExternalDataUtil.SORT_COLUMN_NAME).append(" real ");
+
+                sortBindIndex = ++bindCount;
+                insertColumns.append(bindCount > 1 ? ", " : "")
+                        .append(ExternalDataUtil.SORT_COLUMN_NAME);
+                insertParameters.append(bindCount > 1 ? ", ?" : "?");
             }
 
             sb.append(" );");
@@ -177,61 +582,72 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
                 }
             }
 
-            // populate the database
-            String[] row = reader.readNext();
-            int rowCount = 0;
-            while (row != null && !formLoaderTask.isCancelled()) {
-                // SCTO-894 - first we should make sure that this is not an empty line
-                if (!ExternalDataUtil.containsAnyData(row)) {
-                    // yes, that is an empty row, ignore it
-                    row = reader.readNext();
-                    continue;
-                }
+            insert = db.compileStatement("INSERT INTO " + tableName + " (" + insertColumns
+                    + ") VALUES (" + insertParameters + ");");
 
-                // SCTO-894 - then check if the row contains less values than the header
-                // we should not ignore the existing values in the row,
-                // we will just fill up the rest with empty strings
-                if (row.length < headerRow.length) {
-                    row = ExternalDataUtil.fillUpNullValues(row, headerRow);
-                }
+            // populate the database, binding each field straight from the tokenizer
+            boolean hasRow = reader.next();
+            int rowCount = 0;
+            db.beginTransaction();
+            try {
+                while (hasRow && !isCancelled()) {
+                    // SCTO-894 - first we should make sure that this is not an empty line
+                    if (!reader.containsAnyData()) {
+                        // yes, that is an empty row, ignore it
+                        hasRow = reader.next();
+                        continue;
+                    }
 
-                ContentValues values = new ContentValues();
-                if (!sortColumnAlreadyPresent) {
-                    values.put(ExternalDataUtil.SORT_COLUMN_NAME, rowCount + 1);
-                }
+                    // SCTO-894 - a row may contain less values than the header; we should not
+                    // ignore the existing values in the row, and the tokenizer reads the rest as
+                    // empty strings
 
-                for (int i = 0; i < row.length && i < headerRow.length; i++) {
-                    String columnName = headerRow[i].trim();
-                    String columnValue = row[i];
-                    if (columnName.length() == 0) {
-                        continue;
+                    if (!sortColumnAlreadyPresent) {
+                        insert.bindLong(sortBindIndex, rowCount + 1);
                     }
-                    String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName,
-                            columnNamesCache);
-                    if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
-                        try {
-                            values.put(safeColumnName, Double.parseDouble(columnValue));
-                        } catch (NumberFormatException e) {
-                            throw new ExternalDataException(Collect.getInstance().getString(
-                                    R.string.ext_sortBy_numeric_error, columnValue));
+
+                    for (int i = 0; i < headerRow.length; i++) {
+                        int bindIndex = bindIndexes[i];
+                        if (bindIndex == 0) {
+                            continue;
+                        }
+                        String columnValue = reader.getField(i);
+                        if (bindIndex == sortBindIndex) {
+                            try {
+                                insert.bindDouble(bindIndex, Double.parseDouble(columnValue));
+                            } catch (NumberFormatException e) {
+                                throw new ExternalDataException(Collect.getInstance().getString(
+                                        R.string.ext_sortBy_numeric_error, columnValue));
+                            }
+                        } else {
+                            insert.bindString(bindIndex, columnValue);
                         }
-                    } else {
-                        values.put(safeColumnName, columnValue);
+                    }
+                    insert.executeInsert();
+                    hasRow = reader.next();
+                    rowCount++;
+
+                    if (rowCount % IMPORT_BATCH_SIZE == 0) {
+                        db.setTransactionSuccessful();
+                        db.endTransaction();
+                        db.beginTransaction();
+                    }
+                    if (rowCount % 100 == 0) {
+                        onProgress(Collect.getInstance().getString(
+                                R.string.ext_import_progress_message,
+                                dataSetFile.getName(), " (" + rowCount + " records so far)"));
                     }
                 }
-                db.insertOrThrow(tableName, null, values);
-                row = reader.readNext();
-                rowCount++;
-                if (rowCount % 100 == 0) {
-                    onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message,
-                            dataSetFile.getName(), " (" + rowCount + " records so far)"));
-                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
 
-            if (formLoaderTask.isCancelled()) {
+            if (isCancelled()) {
                 Log.w(ExternalDataUtil.LOGGER_NAME,
                         "User canceled reading data from " + dataSetFile);
                 onProgress(Collect.getInstance().getString(R.string.ext_import_cancelled_message));
+                return false;
             } else {
 
                 onProgress(Collect.getInstance().getString(R.string.ext_import_finalizing_message));
@@ -244,8 +660,12 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
 
                 Log.w(ExternalDataUtil.LOGGER_NAME, "Read all data from " + dataSetFile);
                 onProgress(Collect.getInstance().getString(R.string.ext_import_completed_message));
+                return true;
             }
         } finally {
+            if (insert != null) {
+                insert.close();
+            }
             if (reader != null) {
                 try {
                     reader.close();
@@ -260,8 +680,14 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
     }
 
+    private boolean isCancelled() {
+        return formLoaderTask != null && formLoaderTask.isCancelled();
+    }
+
     private void onProgress(String message) {
-        if (formLoaderTask != null) {
+        if (externalDataReader != null) {
+            externalDataReader.onProgress(dataSetFile, message);
+        } else if (formLoaderTask != null) {
             formLoaderTask.publishExternalDataLoadingProgress(message);
         }
     }
@@ -18,15 +18,13 @@
 
 package org.odk.collect.android.external.handler;
 
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.odk.collect.android.external.ExternalDataLookup;
 import org.odk.collect.android.external.ExternalDataManager;
 import org.odk.collect.android.external.ExternalDataUtil;
-import org.odk.collect.android.external.ExternalSQLiteOpenHelper;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -80,25 +78,15 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
         // SCTO-545
         dataSetName = normalize(dataSetName);
 
-        Cursor c = null;
         try {
-
-            ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(
-                    dataSetName, false);
-            if (sqLiteOpenHelper == null) {
+            ExternalDataLookup lookup = getExternalDataManager().getLookup(dataSetName);
+            if (lookup == null) {
                 return "";
             }
 
-            SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
-            String[] columns = {ExternalDataUtil.toSafeColumnName(queriedColumn)};
-            String selection = ExternalDataUtil.toSafeColumnName(referenceColumn) + "=?";
-            String[] selectionArgs = {referenceValue};
-
-            c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, columns, selection,
-                    selectionArgs, null, null, null);
-            if (c.getCount() > 0) {
-                c.moveToFirst();
-                return ExternalDataUtil.nullSafe(c.getString(0));
+            String value = lookup.lookup(queriedColumn, referenceColumn, referenceValue);
+            if (value != null) {
+                return value;
             } else {
                 Log.e(ExternalDataUtil.LOGGER_NAME,
                         "Could not find a value in " + queriedColumn + " where the column "
@@ -108,10 +96,6 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
         } catch (Exception e) {
             Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage());
             return "";
-        } finally {
-            if (c != null) {
-                c.close();
-            }
         }
     }
 }
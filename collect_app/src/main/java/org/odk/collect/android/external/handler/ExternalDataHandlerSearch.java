@@ -20,6 +20,7 @@ package org.odk.collect.android.external.handler;
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 
 import org.javarosa.core.model.SelectChoice;
 import org.javarosa.core.model.condition.EvaluationContext;
@@ -27,16 +28,17 @@ import org.javarosa.xpath.expr.XPathFuncExpr;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.exception.ExternalDataException;
+import org.odk.collect.android.external.ExternalChoiceList;
+import org.odk.collect.android.external.ExternalDataIndexer;
+import org.odk.collect.android.external.ExternalDataLookup;
 import org.odk.collect.android.external.ExternalDataManager;
 import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.external.ExternalSQLiteOpenHelper;
 import org.odk.collect.android.external.ExternalSelectChoice;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
 
 /**
  * Author: Meletis Margaritis
@@ -47,6 +49,8 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
 
     public static final String HANDLER_NAME = "search";
 
+    private static final String FIRST_SORT_COLUMN = "first_sortby";
+
     private final String displayColumns;
     private final String valueColumn;
     private final String imageColumn;
@@ -135,110 +139,127 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
         // SCTO-545
         dataSetName = normalize(dataSetName);
 
-        Cursor c = null;
-        try {
-            ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(
-                    dataSetName, true);
-
-            SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
-            LinkedHashMap<String, String> selectColumnMap =
-                    ExternalDataUtil.createMapWithDisplayingColumns(getValueColumn(),
-                            getDisplayColumns());
-
-            List<String> columnsToFetch = new ArrayList<String>(selectColumnMap.keySet());
-            String safeImageColumn = null;
-            if (getImageColumn() != null && getImageColumn().trim().length() > 0) {
-                safeImageColumn = ExternalDataUtil.toSafeColumnName(getImageColumn());
-                columnsToFetch.add(safeImageColumn);
-            }
+        ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(
+                dataSetName, true);
+
+        SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
+        final LinkedHashMap<String, String> selectColumnMap =
+                ExternalDataUtil.createMapWithDisplayingColumns(getValueColumn(),
+                        getDisplayColumns());
 
-            String[] sqlColumns = columnsToFetch.toArray(new String[columnsToFetch.size()]);
+        List<String> columnsToFetch = new ArrayList<String>(selectColumnMap.keySet());
+        String safeImageColumn = null;
+        if (getImageColumn() != null && getImageColumn().trim().length() > 0) {
+            safeImageColumn = ExternalDataUtil.toSafeColumnName(getImageColumn());
+            columnsToFetch.add(safeImageColumn);
+        }
 
-            String selection;
-            String[] selectionArgs;
+        String[] sqlColumns = columnsToFetch.toArray(new String[columnsToFetch.size()]);
+
+        String selection;
+        String[] selectionArgs;
+
+        if (searchRows && useFilter) {
+            selection = "( " + createLikeExpression(queriedColumns) + " ) AND "
+                    + ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
+            String[] likeArgs = externalDataSearchType.constructLikeArguments(queriedValue,
+                    queriedColumns.size());
+            selectionArgs = new String[likeArgs.length + 1];
+            System.arraycopy(likeArgs, 0, selectionArgs, 0, likeArgs.length);
+            selectionArgs[selectionArgs.length - 1] = filterValue;
+        } else if (searchRows) {
+            selection = createLikeExpression(queriedColumns);
+            selectionArgs = externalDataSearchType.constructLikeArguments(queriedValue,
+                    queriedColumns.size());
+        } else if (useFilter) {
+            selection = ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
+            selectionArgs = new String[]{filterValue};
+        } else {
+            selection = null;
+            selectionArgs = null;
+        }
 
-            if (searchRows && useFilter) {
-                selection = "( " + createLikeExpression(queriedColumns) + " ) AND "
-                        + ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
-                String[] likeArgs = externalDataSearchType.constructLikeArguments(queriedValue,
-                        queriedColumns.size());
+        if (searchRows) {
+            // let the search index, if the dataset has one, narrow the rows down first
+            String matchExpression = null;
+            ExternalDataLookup lookup = getExternalDataManager().getLookup(dataSetName);
+            if (lookup != null && lookup.getSearchIndexColumns().containsAll(queriedColumns)) {
+                matchExpression = externalDataSearchType.constructMatchExpression(
+                        queriedColumns, queriedValue);
+            }
+            if (matchExpression != null) {
+                selection = "rowid IN (SELECT docid FROM "
+                        + ExternalDataIndexer.SEARCH_TABLE_NAME + " WHERE "
+                        + ExternalDataIndexer.SEARCH_TABLE_NAME + " MATCH ?) AND ( "
+                        + selection + " )";
+                String[] likeArgs = selectionArgs;
                 selectionArgs = new String[likeArgs.length + 1];
-                System.arraycopy(likeArgs, 0, selectionArgs, 0, likeArgs.length);
-                selectionArgs[selectionArgs.length - 1] = filterValue;
-            } else if (searchRows) {
-                selection = createLikeExpression(queriedColumns);
-                selectionArgs = externalDataSearchType.constructLikeArguments(queriedValue,
-                        queriedColumns.size());
-            } else if (useFilter) {
-                selection = ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
-                selectionArgs = new String[]{filterValue};
-            } else {
-                selection = null;
-                selectionArgs = null;
+                selectionArgs[0] = matchExpression;
+                System.arraycopy(likeArgs, 0, selectionArgs, 1, likeArgs.length);
             }
+        }
 
-            try {
-                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection,
-                        selectionArgs, null, null, ExternalDataUtil.SORT_COLUMN_NAME);
-            } catch (Exception e) {
-                if (c != null) {
-                    c.close();
-                }
-                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection,
-                        selectionArgs, null, null, null);
-            }
+        // one row per value, the first one in sort order, which is the one the label and the
+        // image are taken from. The choices are only read from the cursor as they are needed
+        String groupBy = sqlColumns[0] + " COLLATE BINARY";
+        String[] sortedColumns = new String[sqlColumns.length + 1];
+        System.arraycopy(sqlColumns, 0, sortedColumns, 0, sqlColumns.length);
+        sortedColumns[sqlColumns.length] = "MIN(" + ExternalDataUtil.SORT_COLUMN_NAME + ") AS "
+                + FIRST_SORT_COLUMN;
 
-            return createDynamicSelectChoices(c, selectColumnMap, safeImageColumn);
-        } finally {
-            if (c != null) {
-                c.close();
+        final List<String> columnsToExcludeFromLabels = new ArrayList<String>();
+        columnsToExcludeFromLabels.add(FIRST_SORT_COLUMN);
+        if (safeImageColumn != null) {
+            columnsToExcludeFromLabels.add(safeImageColumn);
+        }
+        final String imageColumnName = safeImageColumn;
+        ExternalChoiceList.ChoiceFactory choiceFactory = new ExternalChoiceList.ChoiceFactory() {
+            @Override
+            public SelectChoice createChoice(Cursor c, int index) {
+                return createDynamicSelectChoice(c, index, selectColumnMap,
+                        columnsToExcludeFromLabels, imageColumnName);
             }
+        };
+
+        try {
+            return new ExternalChoiceList(getExternalDataManager(), dataSetName,
+                    SQLiteQueryBuilder.buildQueryString(false,
+                            ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sortedColumns, selection,
+                            groupBy, null, FIRST_SORT_COLUMN, null),
+                    selectionArgs, choiceFactory);
+        } catch (Exception e) {
+            // a dataset without the sort column
+            columnsToExcludeFromLabels.remove(FIRST_SORT_COLUMN);
+            return new ExternalChoiceList(getExternalDataManager(), dataSetName,
+                    SQLiteQueryBuilder.buildQueryString(false,
+                            ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection,
+                            groupBy, null, null, null),
+                    selectionArgs, choiceFactory);
         }
     }
 
-    protected ArrayList<SelectChoice> createDynamicSelectChoices(Cursor c,
-            LinkedHashMap<String, String> selectColumnMap, String safeImageColumn) {
-        List<String> columnsToExcludeFromLabels = new ArrayList<String>();
-        if (safeImageColumn != null) {
-            columnsToExcludeFromLabels.add(safeImageColumn);
+    protected SelectChoice createDynamicSelectChoice(Cursor c, int index,
+            LinkedHashMap<String, String> selectColumnMap, List<String> columnsToExcludeFromLabels,
+            String safeImageColumn) {
+        // the value is always the first column
+        String value = c.getString(0);
+        String label = buildLabel(c, selectColumnMap, columnsToExcludeFromLabels);
+
+        ExternalSelectChoice selectChoice;
+        if (label.trim().length() == 0) {
+            selectChoice = new ExternalSelectChoice(value, value, false);
+        } else {
+            selectChoice = new ExternalSelectChoice(label, value, false);
         }
+        selectChoice.setIndex(index);
 
-        ArrayList<SelectChoice> selectChoices = new ArrayList<SelectChoice>();
-        if (c.getCount() > 0) {
-            c.moveToPosition(-1);
-            int index = 0;
-            Set<String> uniqueValues = new HashSet<String>();
-            while (c.moveToNext()) {
-
-                // the value is always the first column
-                String value = c.getString(0);
-                if (!uniqueValues.contains(value)) {
-                    String label = buildLabel(c, selectColumnMap, columnsToExcludeFromLabels);
-
-                    ExternalSelectChoice selectChoice;
-                    if (label.trim().length() == 0) {
-                        selectChoice = new ExternalSelectChoice(value, value, false);
-                    } else {
-                        selectChoice = new ExternalSelectChoice(label, value, false);
-                    }
-                    selectChoice.setIndex(index);
-
-                    if (safeImageColumn != null && safeImageColumn.trim().length() > 0) {
-                        String image = c.getString(c.getColumnIndex(safeImageColumn));
-                        if (image != null && image.trim().length() > 0) {
-                            selectChoice.setImage(ExternalDataUtil.JR_IMAGES_PREFIX + image);
-                        }
-                    }
-
-                    selectChoices.add(selectChoice);
-
-                    index++;
-
-                    uniqueValues.add(value);
-                }
+        if (safeImageColumn != null && safeImageColumn.trim().length() > 0) {
+            String image = c.getString(c.getColumnIndex(safeImageColumn));
+            if (image != null && image.trim().length() > 0) {
+                selectChoice.setImage(ExternalDataUtil.JR_IMAGES_PREFIX + image);
             }
         }
-        return selectChoices;
+        return selectChoice;
     }
 
     protected String createLikeExpression(List<String> queriedColumns) {
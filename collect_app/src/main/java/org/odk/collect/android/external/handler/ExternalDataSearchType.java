@@ -18,6 +18,9 @@
 
 package org.odk.collect.android.external.handler;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Author: Meletis Margaritis
  * Date: 20/05/13
@@ -25,28 +28,28 @@ package org.odk.collect.android.external.handler;
  */
 enum ExternalDataSearchType {
 
-    CONTAINS("contains") {
+    CONTAINS("contains", false, false) {
         @Override
         protected String getSingleLikeArgument(String queriedValue) {
             return '%' + queriedValue + '%';
         }
     },
 
-    MATCHES("matches") {
+    MATCHES("matches", true, true) {
         @Override
         protected String getSingleLikeArgument(String queriedValue) {
             return queriedValue;
         }
     },
 
-    STARTS("startsWith") {
+    STARTS("startsWith", true, false) {
         @Override
         protected String getSingleLikeArgument(String queriedValue) {
             return queriedValue + '%';
         }
     },
 
-    ENDS("endsWith") {
+    ENDS("endsWith", false, true) {
         @Override
         protected String getSingleLikeArgument(String queriedValue) {
             return '%' + queriedValue;
@@ -55,8 +58,14 @@ enum ExternalDataSearchType {
 
     private final String keyword;
 
-    ExternalDataSearchType(String keyword) {
+    // whether the queried value has to be at the start (end) of the column
+    private final boolean anchoredAtStart;
+    private final boolean anchoredAtEnd;
+
+    ExternalDataSearchType(String keyword, boolean anchoredAtStart, boolean anchoredAtEnd) {
         this.keyword = keyword;
+        this.anchoredAtStart = anchoredAtStart;
+        this.anchoredAtEnd = anchoredAtEnd;
     }
 
     public String getKeyword() {
@@ -86,5 +95,73 @@ enum ExternalDataSearchType {
         return args;
     }
 
+    /**
+     * Builds a full-text query for the search index that matches every row the LIKE arguments
+     * match, and hopefully few others, so that the LIKE expressions only have to be run on those.
+     *
+     * The index splits the columns into words the way SQLite's "simple" tokenizer does. The
+     * words of the queried value have to appear in the column in the same order, except that a
+     * word cut off by the start of the value may be the end of a longer word, and one cut off by
+     * the end may be the start of one.
+     *
+     * @return the query, or null if the index can't narrow the search down
+     */
+    public String constructMatchExpression(List<String> queriedColumns, String queriedValue) {
+        if (queriedValue == null || queriedValue.indexOf('%') != -1
+                || queriedValue.indexOf('_') != -1) {
+            // LIKE wildcards typed in by the enumerator
+            return null;
+        }
+
+        List<String> words = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < queriedValue.length(); i++) {
+            char c = queriedValue.charAt(i);
+            if (isWordChar(c)) {
+                word.append(c);
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        if (word.length() > 0) {
+            words.add(word.toString());
+        }
+
+        if (!words.isEmpty() && !anchoredAtStart && isWordChar(queriedValue.charAt(0))) {
+            words.remove(0);
+        }
+        if (words.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder phrase = new StringBuilder("\"");
+        for (int i = 0; i < words.size(); i++) {
+            phrase.append(i == 0 ? "" : " ").append(words.get(i));
+        }
+        if (!anchoredAtEnd && isWordChar(queriedValue.charAt(queriedValue.length() - 1))) {
+            phrase.append('*');
+        }
+        phrase.append('"');
+
+        StringBuilder expression = new StringBuilder();
+        for (String queriedColumn : queriedColumns) {
+            if (expression.length() > 0) {
+                expression.append(" OR ");
+            }
+            expression.append(queriedColumn).append(':').append(phrase);
+        }
+        return expression.toString();
+    }
+
+    /**
+     * The "simple" tokenizer treats ASCII letters and digits and all non-ASCII characters as
+     * parts of words.
+     */
+    private static boolean isWordChar(char c) {
+        return c >= 0x80 || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9');
+    }
+
     protected abstract String getSingleLikeArgument(String queriedValue);
 }
@@ -29,6 +29,7 @@ import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.StringData;
 import org.javarosa.core.model.instance.FormInstance;
 import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.services.IPropertyManager;
 import org.javarosa.core.services.PrototypeManager;
 import org.javarosa.core.services.transport.payload.ByteArrayPayload;
@@ -47,9 +48,11 @@ import org.odk.collect.android.views.ODKView;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class is a wrapper for Javarosa's FormEntryController. In theory, if you wanted to replace
@@ -84,7 +87,7 @@ public class FormController {
         public final String instanceId;
         public final String instanceName;
 
-        InstanceMetadata(String instanceId, String instanceName) {
+        public InstanceMetadata(String instanceId, String instanceName) {
             this.instanceId = instanceId;
             this.instanceName = instanceName;
         }
@@ -92,6 +95,54 @@ public class FormController {
 
     ;
 
+    /**
+     * A consistent view of the instance, taken while nothing else is changing it. Background
+     * writers serialize the snapshot instead of the live instance, so data entry can carry on
+     * while they do.
+     */
+    public static final class InstanceSnapshot {
+        // null unless a copy of the instance was asked for
+        private final FormInstance mInstance;
+        private final IDataReference mSubmissionReference;
+        public final LinkedHashMap<TreeReference, IAnswerData> unsavedAnswers;
+        public final int structureVersion;
+        public final int nodeCount;
+
+        InstanceSnapshot(FormInstance instance, IDataReference submissionReference,
+                LinkedHashMap<TreeReference, IAnswerData> unsavedAnswers, int structureVersion,
+                int nodeCount) {
+            mInstance = instance;
+            mSubmissionReference = submissionReference;
+            this.unsavedAnswers = unsavedAnswers;
+            this.structureVersion = structureVersion;
+            this.nodeCount = nodeCount;
+        }
+
+        /**
+         * Constructs the XML payload of the copied instance.
+         */
+        public ByteArrayPayload getFilledInFormXml() throws IOException {
+            XFormSerializingVisitor serializer = new XFormSerializingVisitor();
+            return (ByteArrayPayload) serializer.createSerializedPayload(getCopy());
+        }
+
+        /**
+         * Extract the portion of the copied instance that should be uploaded to the server.
+         */
+        public ByteArrayPayload getSubmissionXml() throws IOException {
+            XFormSerializingVisitor serializer = new XFormSerializingVisitor();
+            return (ByteArrayPayload) serializer.createSerializedPayload(getCopy(),
+                    mSubmissionReference);
+        }
+
+        private FormInstance getCopy() {
+            if (mInstance == null) {
+                throw new IllegalStateException("The snapshot holds no copy of the instance");
+            }
+            return mInstance;
+        }
+    }
+
     /**
      * Classes needed to serialize objects. Need to put anything from JR in here.
      */
@@ -155,6 +206,26 @@ public class FormController {
     private FormEntryController mFormEntryController;
     private FormIndex mIndexWaitingForData = null;
 
+    /**
+     * Every event's {@link #getXPath(FormIndex)} mapped to its index. Built by one pass through
+     * the form on the first lookup and dropped whenever repeats are added or removed, because
+     * that shifts the indexes of everything in them.
+     */
+    private HashMap<String, FormIndex> mXPathIndexes = null;
+
+    /**
+     * Answers changed since the last savepoint, in the order they were made. Read and cleared by
+     * {@link org.odk.collect.android.tasks.SavePointScheduler} from a background thread.
+     */
+    private final LinkedHashMap<TreeReference, IAnswerData> mUnsavedAnswers =
+            new LinkedHashMap<TreeReference, IAnswerData>();
+
+    // bumped whenever repeats are added or removed, which an answer journal can't express
+    private volatile int mStructureVersion = 0;
+
+    // held while the instance is changed or copied, see takeSnapshot()
+    private final Object mInstanceLock = new Object();
+
     public FormController(File mediaFolder, FormEntryController fec, File instancePath) {
         mMediaFolder = mediaFolder;
         mFormEntryController = fec;
@@ -191,8 +262,12 @@ public class FormController {
      * @return xpath value for this index
      */
     public String getXPath(FormIndex index) {
+        return getXPath(index, getEvent());
+    }
+
+    private String getXPath(FormIndex index, int event) {
         String value;
-        switch (getEvent()) {
+        switch (event) {
             case FormEntryController.EVENT_BEGINNING_OF_FORM:
                 value = "beginningOfForm";
                 break;
@@ -230,26 +305,54 @@ public class FormController {
             Log.e(t, "Unexpected string from XPath");
             throw new IllegalArgumentException("unexpected string from XPath");
         } else {
-            FormIndex returned = null;
-            FormIndex saved = getFormIndex();
-            // the only way I know how to do this is to step through the entire form
-            // until the XPath of a form entry matches that of the supplied XPath
-            try {
-                jumpToIndex(FormIndex.createBeginningOfFormIndex());
-                int event = stepToNextEvent(true);
-                while (event != FormEntryController.EVENT_END_OF_FORM) {
-                    String candidateXPath = getXPath(getFormIndex());
-                    // Log.i(t, "xpath: " + candidateXPath);
-                    if (candidateXPath.equals(xPath)) {
-                        returned = getFormIndex();
-                        break;
-                    }
-                    event = stepToNextEvent(true);
+            if (mXPathIndexes != null) {
+                FormIndex cached = mXPathIndexes.get(xPath);
+                if (cached != null && isStillAt(cached, xPath)) {
+                    return cached;
                 }
-            } finally {
-                jumpToIndex(saved);
             }
-            return returned;
+
+            // not seen yet, or relevance has changed since the map was built
+            buildXPathIndexes();
+            return mXPathIndexes.get(xPath);
+        }
+    }
+
+    /**
+     * The only way to find the index for an XPath is to step through the entire form until the
+     * XPath of a form entry matches, so record every event on the way in a single pass.
+     */
+    private void buildXPathIndexes() {
+        HashMap<String, FormIndex> indexes = new HashMap<String, FormIndex>();
+        FormIndex saved = getFormIndex();
+        try {
+            jumpToIndex(FormIndex.createBeginningOfFormIndex());
+            int event = stepToNextEvent(true);
+            while (event != FormEntryController.EVENT_END_OF_FORM) {
+                FormIndex index = getFormIndex();
+                String xPath = getXPath(index, event);
+                // the first match wins, as it always has
+                if (!indexes.containsKey(xPath)) {
+                    indexes.put(xPath, index);
+                }
+                event = stepToNextEvent(true);
+            }
+        } finally {
+            jumpToIndex(saved);
+        }
+        mXPathIndexes = indexes;
+    }
+
+    /**
+     * @return true if the index from the map still points at a relevant event with that XPath
+     */
+    private boolean isStillAt(FormIndex index, String xPath) {
+        try {
+            return xPath.equals(getXPath(index, getEvent(index)))
+                    && mFormEntryController.getModel().isIndexRelevant(index);
+        } catch (RuntimeException e) {
+            Log.w(t, "Discarding stale index for " + xPath, e);
+            return false;
         }
     }
 
@@ -351,7 +454,9 @@ public class FormController {
      * end time of a form.
      */
     public boolean postProcessInstance() {
-        return mFormEntryController.getModel().getForm().postProcessInstance();
+        synchronized (mInstanceLock) {
+            return mFormEntryController.getModel().getForm().postProcessInstance();
+        }
     }
 
 
@@ -442,10 +547,17 @@ public class FormController {
      * Attempts to save answer into the given FormIndex into the data model.
      */
     public int answerQuestion(FormIndex index, IAnswerData data) throws JavaRosaException {
-        try {
-            return mFormEntryController.answerQuestion(index, data, true);
-        } catch (Exception e) {
-            throw new JavaRosaException(e);
+        synchronized (mInstanceLock) {
+            int saveStatus;
+            try {
+                saveStatus = mFormEntryController.answerQuestion(index, data, true);
+            } catch (Exception e) {
+                throw new JavaRosaException(e);
+            }
+            if (saveStatus == FormEntryController.ANSWER_OK) {
+                recordUnsavedAnswer(index, data);
+            }
+            return saveStatus;
         }
     }
 
@@ -458,12 +570,15 @@ public class FormController {
      * type.
      */
     public int validateAnswers(Boolean markCompleted) throws JavaRosaException {
-        ValidateOutcome outcome = getFormDef().validate(markCompleted);
-        if (outcome != null) {
-            this.jumpToIndex(outcome.failedPrompt);
-            return outcome.outcome;
+        // validation steps through the whole form, which can create jr:count repeats
+        synchronized (mInstanceLock) {
+            ValidateOutcome outcome = getFormDef().validate(markCompleted);
+            if (outcome != null) {
+                this.jumpToIndex(outcome.failedPrompt);
+                return outcome.outcome;
+            }
+            return FormEntryController.ANSWER_OK;
         }
-        return FormEntryController.ANSWER_OK;
     }
 
 
@@ -476,14 +591,88 @@ public class FormController {
      * @return true if saved successfully, false otherwise.
      */
     public boolean saveAnswer(FormIndex index, IAnswerData data) throws JavaRosaException {
-        try {
-            return mFormEntryController.saveAnswer(index, data, true);
-        } catch (Exception e) {
-            throw new JavaRosaException(e);
+        synchronized (mInstanceLock) {
+            boolean saved;
+            try {
+                saved = mFormEntryController.saveAnswer(index, data, true);
+            } catch (Exception e) {
+                throw new JavaRosaException(e);
+            }
+            if (saved) {
+                recordUnsavedAnswer(index, data);
+            }
+            return saved;
         }
     }
 
 
+    private void recordUnsavedAnswer(FormIndex index, IAnswerData data) {
+        TreeReference ref = index.getReference().clone();
+        synchronized (mUnsavedAnswers) {
+            // re-insert so that the map stays in the order of the latest change
+            mUnsavedAnswers.remove(ref);
+            mUnsavedAnswers.put(ref, data);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the instance. Answers and repeats can't change while it is taken, so
+     * the unsaved answers, structure version and node count all describe the same state. Besides
+     * answering and adding or deleting repeats, every step or jump through the form holds the
+     * lock, since JavaRosa creates the instances of jr:count repeats as they are reached; that
+     * covers the navigation of the activities and the walk of buildXPathIndexes().
+     *
+     * @param copyInstance whether to deep copy the instance too, for serializing it; the copy
+     *                     takes time and memory in proportion to the size of the instance, so
+     *                     leave it out when the answers are all that's needed
+     */
+    public InstanceSnapshot takeSnapshot(boolean copyInstance) {
+        synchronized (mInstanceLock) {
+            FormInstance copy = copyInstance ? getInstance().clone() : null;
+            return new InstanceSnapshot(copy, getSubmissionDataReference(), getUnsavedAnswers(),
+                    mStructureVersion, countInstanceNodes());
+        }
+    }
+
+    /**
+     * @return a copy of the answers changed since {@link #markAnswersSaved(Map)} was last called
+     */
+    private LinkedHashMap<TreeReference, IAnswerData> getUnsavedAnswers() {
+        synchronized (mUnsavedAnswers) {
+            return new LinkedHashMap<TreeReference, IAnswerData>(mUnsavedAnswers);
+        }
+    }
+
+    /**
+     * Forgets the given answers, unless they have been changed again in the meantime.
+     */
+    public void markAnswersSaved(Map<TreeReference, IAnswerData> saved) {
+        synchronized (mUnsavedAnswers) {
+            for (Map.Entry<TreeReference, IAnswerData> entry : saved.entrySet()) {
+                if (mUnsavedAnswers.containsKey(entry.getKey())
+                        && mUnsavedAnswers.get(entry.getKey()) == entry.getValue()) {
+                    mUnsavedAnswers.remove(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of nodes in the instance. Repeats created by the form engine itself
+     * (e.g. jr:count) don't go through {@link #newRepeat()}, but they do change this.
+     */
+    private int countInstanceNodes() {
+        return countNodes(getFormDef().getMainInstance().getRoot());
+    }
+
+    private static int countNodes(TreeElement element) {
+        int count = 1;
+        for (int i = 0; i < element.getNumChildren(); i++) {
+            count += countNodes(element.getChildAt(i));
+        }
+        return count;
+    }
+
     /**
      * Navigates forward in the form.
      *
@@ -495,7 +684,10 @@ public class FormController {
                 && indexIsInFieldList() && !stepIntoGroup) {
             return stepOverGroup();
         } else {
-            return mFormEntryController.stepToNextEvent();
+            // stepping into a jr:count repeat creates its instances
+            synchronized (mInstanceLock) {
+                return mFormEntryController.stepToNextEvent();
+            }
         }
     }
 
@@ -519,7 +711,7 @@ public class FormController {
         }
 
         // jump to the end of the group
-        mFormEntryController.jumpToIndex(indicies.get(indicies.size() - 1));
+        jumpToIndex(indicies.get(indicies.size() - 1));
         return stepToNextEvent(STEP_OVER_GROUP);
     }
 
@@ -578,7 +770,7 @@ public class FormController {
                                 if (pd.getChildren().size() == 1 &&
                                         ODKView.FIELD_LIST.equalsIgnoreCase(
                                                 pd.getAppearanceAttr())) {
-                                    mFormEntryController.jumpToIndex(fc.getIndex());
+                                    jumpToIndex(fc.getIndex());
                                 }
                             }
                         }
@@ -729,7 +921,9 @@ public class FormController {
          * 'field-list', this method will have to be updated.
          */
 
-        mFormEntryController.stepToPreviousEvent();
+        synchronized (mInstanceLock) {
+            mFormEntryController.stepToPreviousEvent();
+        }
 
         // If after we've stepped, we're in a field-list, jump back to the beginning of the group
         //
@@ -741,7 +935,7 @@ public class FormController {
             // caption[len-2] == the first group it is contained in.
             FormEntryCaption[] captions = getCaptionHierarchy();
             FormEntryCaption grp = captions[captions.length - 2];
-            int event = mFormEntryController.jumpToIndex(grp.getIndex());
+            int event = jumpToIndex(grp.getIndex());
             // and test if this group or at least one of its children is relevant...
             FormIndex idx = grp.getIndex();
             if (!mFormEntryController.getModel().isIndexRelevant(idx)) {
@@ -783,7 +977,10 @@ public class FormController {
      * @return EVENT for the specified Index.
      */
     public int jumpToIndex(FormIndex index) {
-        return mFormEntryController.jumpToIndex(index);
+        // like any step, a jump can create the instances of a jr:count repeat
+        synchronized (mInstanceLock) {
+            return mFormEntryController.jumpToIndex(index);
+        }
     }
 
 
@@ -791,7 +988,11 @@ public class FormController {
      * Creates a new repeated instance of the group referenced by the current FormIndex.
      */
     public void newRepeat() {
-        mFormEntryController.newRepeat();
+        synchronized (mInstanceLock) {
+            mFormEntryController.newRepeat();
+            mXPathIndexes = null;
+            mStructureVersion++;
+        }
     }
 
 
@@ -802,8 +1003,13 @@ public class FormController {
      * (2) > group2 (3) and you call deleteRepeat, it will delete the 3rd instance of group2.
      */
     public void deleteRepeat() {
-        FormIndex fi = mFormEntryController.deleteRepeat();
-        mFormEntryController.jumpToIndex(fi);
+        FormIndex fi;
+        synchronized (mInstanceLock) {
+            fi = mFormEntryController.deleteRepeat();
+            mXPathIndexes = null;
+            mStructureVersion++;
+        }
+        jumpToIndex(fi);
     }
 
 
@@ -28,10 +28,11 @@ import android.util.Log;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FileFingerprintStore;
 import org.odk.collect.android.database.ItemsetDbAdapter;
 import org.odk.collect.android.database.ODKSQLiteOpenHelper;
+import org.odk.collect.android.database.SharedDataSetStore;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
-import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.MediaUtils;
 
 import java.io.File;
@@ -356,7 +357,7 @@ public class FormsProvider extends ContentProvider {
         if (values.containsKey(FormsColumns.MD5_HASH)) {
             values.remove(FormsColumns.MD5_HASH);
         }
-        String md5 = FileUtils.getMd5Hash(form);
+        String md5 = FileFingerprintStore.getInstance().getMd5Hash(form);
         values.put(FormsColumns.MD5_HASH, md5);
 
         if (values.containsKey(FormsColumns.JRCACHE_FILE_PATH) == false) {
@@ -465,8 +466,10 @@ public class FormsProvider extends ContentProvider {
                             Collect.getInstance().getActivityLogger()
                                     .logAction(this, "delete", formFilePath);
                             deleteFileOrDir(formFilePath);
-                            deleteFileOrDir(del.getString(del
-                                    .getColumnIndex(FormsColumns.FORM_MEDIA_PATH)));
+                            String mediaPath = del.getString(del
+                                    .getColumnIndex(FormsColumns.FORM_MEDIA_PATH));
+                            deleteFileOrDir(mediaPath);
+                            SharedDataSetStore.getInstance().release(mediaPath);
                         } while (del.moveToNext());
                     }
                 } finally {
@@ -494,8 +497,10 @@ public class FormsProvider extends ContentProvider {
                             Collect.getInstance().getActivityLogger()
                                     .logAction(this, "delete", formFilePath);
                             deleteFileOrDir(formFilePath);
-                            deleteFileOrDir(c.getString(c
-                                    .getColumnIndex(FormsColumns.FORM_MEDIA_PATH)));
+                            String mediaPath = c.getString(c
+                                    .getColumnIndex(FormsColumns.FORM_MEDIA_PATH));
+                            deleteFileOrDir(mediaPath);
+                            SharedDataSetStore.getInstance().release(mediaPath);
 
                             try {
                                 // get rid of the old tables
@@ -553,7 +558,7 @@ public class FormsProvider extends ContentProvider {
                     String formFile = values
                             .getAsString(FormsColumns.FORM_FILE_PATH);
                     values.put(FormsColumns.MD5_HASH,
-                            FileUtils.getMd5Hash(new File(formFile)));
+                            FileFingerprintStore.getInstance().getMd5Hash(new File(formFile)));
                 }
 
                 Cursor c = null;
@@ -652,7 +657,7 @@ public class FormsProvider extends ContentProvider {
                             deleteFileOrDir(update
                                     .getString(update
                                             .getColumnIndex(FormsColumns.JRCACHE_FILE_PATH)));
-                            String newMd5 = FileUtils
+                            String newMd5 = FileFingerprintStore.getInstance()
                                     .getMd5Hash(new File(formFile));
                             values.put(FormsColumns.MD5_HASH, newMd5);
                             values.put(FormsColumns.JRCACHE_FILE_PATH,
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.services;
+
+import android.app.IntentService;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Environment;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import org.odk.collect.android.R;
+import org.odk.collect.android.activities.NotificationActivity;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.dao.InstancesDao;
+import org.odk.collect.android.database.FinalizeQueue;
+import org.odk.collect.android.database.FinalizeQueue.Job;
+import org.odk.collect.android.exception.EncryptionException;
+import org.odk.collect.android.logic.FormController.InstanceMetadata;
+import org.odk.collect.android.provider.InstanceProviderAPI;
+import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.utilities.EncryptionUtils;
+import org.odk.collect.android.utilities.EncryptionUtils.EncryptedFormInformation;
+import org.odk.collect.android.utilities.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Packages the submissions of finalized instances in the background, so that the enumerator
+ * doesn't have to wait for the attachments of an encrypted form to be encrypted before starting
+ * the next interview.
+ *
+ * {@link org.odk.collect.android.tasks.SaveToDiskTask} writes the reloadable instance, saves it
+ * as incomplete and queues it in the {@link FinalizeQueue}; this service then encrypts the
+ * submission and marks the instance complete. Each job goes through two steps that can both be
+ * repeated safely, so a job interrupted by the process being killed is simply run again when the
+ * service is next started. While an instance is queued it can't be opened for editing, so it
+ * can't change under the job. A job that fails is tried again the next time the service is
+ * started; after {@link #MAX_ATTEMPTS} failures it is dropped, which leaves the instance
+ * incomplete and re-openable, and is reported through a notification.
+ */
+public class FinalizeService extends IntentService {
+    private static final String t = "FinalizeService";
+
+    private static final int NOTIFICATION_ID = 1328974929;
+
+    // the number of times a job is tried before the instance is given back to the enumerator
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Name of the file the foreground writes the submission to when it is only part of the form.
+     * Files starting with a "." are left alone by the encryption, and deleted with the other
+     * plaintext files once the submission is packaged.
+     */
+    public static final String PARTIAL_SUBMISSION_FILE = ".submission.xml";
+
+    public FinalizeService() {
+        super(t);
+    }
+
+    /**
+     * Starts the service, which works through everything in the queue.
+     */
+    public static void start(Context context) {
+        context.startService(new Intent(context, FinalizeService.class));
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+            Log.w(t, "SD card is not available; leaving the queue for later");
+            return;
+        }
+
+        FinalizeQueue queue = FinalizeQueue.getInstance();
+        for (Job job : queue.getJobs()) {
+            long start = System.currentTimeMillis();
+            try {
+                if (FinalizeQueue.STATE_PENDING.equals(job.state)) {
+                    if (!encrypt(job)) {
+                        continue;
+                    }
+                }
+                if (commit(job)) {
+                    Log.i(t, "Finalized " + job.instanceXml.getName() + " in "
+                            + (System.currentTimeMillis() - start) + " ms");
+                }
+            } catch (Exception e) {
+                Log.e(t, "Unable to finalize " + job.instanceXml.getAbsolutePath() + " (attempt "
+                        + (job.attempts + 1) + " of " + MAX_ATTEMPTS + ")", e);
+                if (job.attempts + 1 < MAX_ATTEMPTS) {
+                    queue.setFailed(job, e.getMessage());
+                } else {
+                    // give up, so that the instance can be opened and finalized again
+                    dropIfUnchanged(job);
+                    notifyFailure(job, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Encrypts the submission and marks the instance complete.
+     *
+     * @return false if the job was dropped because the instance is gone or was saved again
+     */
+    private boolean encrypt(Job job) throws IOException, EncryptionException {
+        FinalizeQueue queue = FinalizeQueue.getInstance();
+        File instanceXml = job.instanceXml;
+        File instanceDir = instanceXml.getParentFile();
+        File submissionXml = new File(instanceDir, "submission.xml");
+
+        if (!isCurrent(job)) {
+            Log.w(t, instanceXml.getName() + " was deleted or saved again; dropping its job");
+            dropIfUnchanged(job);
+            return false;
+        }
+
+        Uri instanceUri = getInstanceUri(instanceXml);
+        if (instanceUri == null) {
+            Log.w(t, instanceXml.getName() + " is no longer in the database; dropping its job");
+            dropIfUnchanged(job);
+            return false;
+        }
+
+        // build submission.xml afresh on every attempt; a failed attempt may have replaced it
+        // with the manifest already
+        File plaintext = job.submissionEntireForm
+                ? instanceXml : new File(instanceDir, PARTIAL_SUBMISSION_FILE);
+        String error = FileUtils.copyFile(plaintext, submissionXml);
+        if (error != null) {
+            throw new IOException(error);
+        }
+
+        EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(
+                instanceUri, new InstanceMetadata(job.instanceId, job.instanceName));
+        if (formInfo == null) {
+            throw new IOException(getString(R.string.finalize_not_encrypted));
+        }
+        EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo);
+
+        // the enumerator may have reopened the instance while we were encrypting it
+        if (!isCurrent(job)) {
+            Log.w(t, instanceXml.getName() + " was saved again while encrypting; dropping its job");
+            FileUtils.deleteAndReport(submissionXml);
+            return false;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_COMPLETE);
+        values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE, Boolean.toString(false));
+        Collect.getInstance().getContentResolver().update(instanceUri, values, null, null);
+        queue.setCommitted(job);
+        return true;
+    }
+
+    /**
+     * Replaces the instance with the encrypted submission manifest and deletes the plaintext
+     * files. The instance is already marked complete, so, as in the foreground, a failed rename
+     * is left to the InstanceUploader to deal with.
+     *
+     * @return false if the job was dropped because the instance was saved again
+     */
+    private boolean commit(Job job) {
+        File instanceXml = job.instanceXml;
+        File submissionXml = new File(instanceXml.getParentFile(), "submission.xml");
+
+        // a commit interrupted after the instance was deleted or replaced is finished off; short
+        // of that, the instance has to be the one that was encrypted
+        boolean started = !submissionXml.exists() || !instanceXml.exists();
+        if (!isQueued(job) || (!started && !isCurrent(job))) {
+            Log.w(t, instanceXml.getName() + " was saved again before it was committed; "
+                    + "dropping its job");
+            if (!started) {
+                FileUtils.deleteAndReport(submissionXml);
+            }
+            dropIfUnchanged(job);
+            return false;
+        }
+
+        if (submissionXml.exists()) {
+            if (instanceXml.exists() && !instanceXml.delete()) {
+                Log.e(t, "Error deleting " + instanceXml.getAbsolutePath()
+                        + " prior to renaming submission.xml");
+            } else if (!submissionXml.renameTo(instanceXml)) {
+                Log.e(t, "Error renaming submission.xml to " + instanceXml.getAbsolutePath());
+            }
+        }
+
+        if (!EncryptionUtils.deletePlaintextFiles(instanceXml)) {
+            Log.e(t, "Error deleting plaintext files for " + instanceXml.getAbsolutePath());
+        }
+
+        FinalizeQueue.getInstance().remove(instanceXml);
+
+        // the instance is complete now, so let the auto-send have a go at it
+        Intent i = new Intent();
+        i.setAction("org.odk.collect.android.FormSaved");
+        sendBroadcast(i);
+        return true;
+    }
+
+    /**
+     * @return true if the instance is still the one that was queued
+     */
+    private boolean isCurrent(Job job) {
+        return isQueued(job)
+                && job.instanceXml.exists()
+                && job.instanceXml.lastModified() == job.instanceLastModified;
+    }
+
+    /**
+     * @return true if the job hasn't been dropped or replaced by the instance being queued again
+     */
+    private boolean isQueued(Job job) {
+        Job queued = FinalizeQueue.getInstance().get(job.instanceXml);
+        return queued != null && queued.instanceLastModified == job.instanceLastModified;
+    }
+
+    /**
+     * Removes the job from the queue, unless the instance has been queued again in the meantime.
+     */
+    private void dropIfUnchanged(Job job) {
+        FinalizeQueue queue = FinalizeQueue.getInstance();
+        Job queued = queue.get(job.instanceXml);
+        if (queued != null && queued.instanceLastModified == job.instanceLastModified) {
+            queue.remove(job.instanceXml);
+        }
+    }
+
+    private Uri getInstanceUri(File instanceXml) {
+        Cursor c = null;
+        try {
+            c = new InstancesDao().getInstancesCursorForFilePath(instanceXml.getAbsolutePath());
+            if (c == null || !c.moveToFirst()) {
+                return null;
+            }
+            long id = c.getLong(c.getColumnIndex(InstanceColumns._ID));
+            return ContentUris.withAppendedId(InstanceColumns.CONTENT_URI, id);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private void notifyFailure(Job job, String error) {
+        String name = job.instanceName != null ? job.instanceName : job.instanceXml.getName();
+        String message = getString(R.string.finalize_failed_message, name, error);
+
+        Intent notifyIntent = new Intent(Collect.getInstance(), NotificationActivity.class);
+        notifyIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        notifyIntent.putExtra(NotificationActivity.NOTIFICATION_KEY, message);
+
+        PendingIntent pendingNotify = PendingIntent.getActivity(Collect.getInstance(), 0,
+                notifyIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(Collect.getInstance())
+                .setSmallIcon(R.drawable.notes)
+                .setContentTitle(getString(R.string.finalize_failed_title))
+                .setContentIntent(pendingNotify)
+                .setContentText(message)
+                .setAutoCancel(true)
+                .setLargeIcon(
+                        BitmapFactory.decodeResource(Collect.getInstance().getResources(),
+                                android.R.drawable.ic_dialog_alert));
+
+        NotificationManager mNotificationManager = (NotificationManager) Collect.getInstance()
+                .getSystemService(Context.NOTIFICATION_SERVICE);
+        mNotificationManager.notify(NOTIFICATION_ID, mBuilder.build());
+    }
+}
@@ -24,6 +24,7 @@ import android.util.Log;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.FormsDao;
+import org.odk.collect.android.database.FileFingerprintStore;
 import org.odk.collect.android.listeners.DiskSyncListener;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.utilities.FileUtils;
@@ -128,7 +129,8 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                             // remove it from the list of forms (we only want forms
                             // we haven't added at the end)
                             xFormsToAdd.remove(sqlFile);
-                            String md5Computed = FileUtils.getMd5Hash(sqlFile);
+                            String md5Computed =
+                                    FileFingerprintStore.getInstance().getMd5Hash(sqlFile);
                             if (md5Computed == null || md5 == null || !md5Computed.equals(md5)) {
                                 // Probably someone overwrite the file on the sdcard
                                 // So re-parse it and update it's information
@@ -183,6 +185,9 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                             Collect.getInstance().getContentResolver()
                                     .update(updateUri, values, null, null);
                     Log.i(t, "[" + instance + "] " + count + " records successfully updated");
+
+                    // the form changed, so compile it before anyone opens it
+                    FormDefPrecompiler.enqueue(formDefFile);
                 }
                 uriToUpdate.clear();
 
@@ -224,6 +229,8 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                     } catch (SQLException e) {
                         Log.i(t, "[" + instance + "] " + e.toString());
                     }
+
+                    FormDefPrecompiler.enqueue(formDefFile);
                 }
             }
             if (errors.length() != 0) {
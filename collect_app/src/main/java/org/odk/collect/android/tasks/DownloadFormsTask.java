@@ -25,6 +25,7 @@ import org.kxml2.kdom.Element;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.FormsDao;
+import org.odk.collect.android.database.FileFingerprintStore;
 import org.odk.collect.android.exception.TaskCancelledException;
 import org.odk.collect.android.listeners.FormDownloaderListener;
 import org.odk.collect.android.logic.FormDetails;
@@ -162,6 +163,9 @@ public class DownloadFormsTask extends
 
                         FileUtils.moveMediaFiles(tempMediaPath, formMediaPath);
                     }
+
+                    // parse the form now, rather than the first time it is opened
+                    FormDefPrecompiler.enqueue(fileResult.getFile());
                 } catch (IOException e) {
                     Log.e(t, e.getMessage());
 
@@ -315,7 +319,8 @@ public class DownloadFormsTask extends
         // make sure it's not the same as a file we already have
         Cursor c = null;
         try {
-            c = mFormsDao.getFormsCursorForMd5Hash(FileUtils.getMd5Hash(f));
+            c = mFormsDao.getFormsCursorForMd5Hash(
+                    FileFingerprintStore.getInstance().getMd5Hash(f));
             if (c.getCount() > 0) {
                 // Should be at most, 1
                 c.moveToFirst();
@@ -679,7 +684,8 @@ public class DownloadFormsTask extends
                 if (!finalMediaFile.exists()) {
                     downloadFile(tempMediaFile, toDownload.downloadUrl);
                 } else {
-                    String currentFileHash = FileUtils.getMd5Hash(finalMediaFile);
+                    String currentFileHash =
+                            FileFingerprintStore.getInstance().getMd5Hash(finalMediaFile);
                     String downloadFileHash = toDownload.hash.substring(MD5_COLON_PREFIX.length());
 
                     if (!currentFileHash.contentEquals(downloadFileHash)) {
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.tasks;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.xform.util.XFormUtils;
+import org.odk.collect.android.database.FileFingerprintStore;
+import org.odk.collect.android.utilities.FormDefCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Parses newly downloaded or changed forms on a single low-priority background thread and writes
+ * their .formdef ahead of time, so that the first open of a form after it is installed or updated
+ * can deserialize the binary instead of parsing the XML in front of the user.
+ *
+ * The templates are only written to disk and are not put in the {@link FormDefCache}, so that
+ * precompiling a whole form list does not evict the templates of forms that are in use.
+ */
+public class FormDefPrecompiler {
+    private static final String t = "FormDefPrecompiler";
+
+    private static final ExecutorService sExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, t);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // absolute paths of forms that are queued but not yet compiled
+    private static final Set<String> sPending = Collections.synchronizedSet(new HashSet<String>());
+
+    private FormDefPrecompiler() {
+    }
+
+    /**
+     * Queues the form for compilation. Does nothing if the form is already queued.
+     */
+    public static void enqueue(File formXml) {
+        final String formPath = formXml.getAbsolutePath();
+        if (!sPending.add(formPath)) {
+            return;
+        }
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    precompile(new File(formPath));
+                } catch (Throwable e) {
+                    // never let a bad form take down the app from a background thread
+                    Log.e(t, "Unable to precompile " + formPath, e);
+                } finally {
+                    sPending.remove(formPath);
+                }
+            }
+        });
+    }
+
+    private static void precompile(File formXml) throws Exception {
+        if (!formXml.exists()) {
+            return;
+        }
+
+        String formHash = FileFingerprintStore.getInstance().getMd5Hash(formXml);
+        if (formHash == null) {
+            return;
+        }
+
+        File formBin = FormDefCache.getFormDefFile(formHash);
+        if (formBin.exists()) {
+            Log.i(t, formXml.getName() + " is already compiled");
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        FileInputStream fis = null;
+        FormDef fd;
+        try {
+            fis = new FileInputStream(formXml);
+            fd = XFormUtils.getFormFromInputStream(fis);
+        } finally {
+            IOUtils.closeQuietly(fis);
+        }
+        if (fd == null) {
+            Log.w(t, "Error reading XForm file " + formXml.getAbsolutePath());
+            return;
+        }
+
+        // the form may have been opened, and its .formdef written, while we were parsing
+        if (!formBin.exists()) {
+            FormDefCache.writeFormDefFile(formBin, FormDefCache.serialize(fd));
+        }
+        Log.i(t, "Precompiled " + formXml.getName() + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -28,19 +28,22 @@ import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.instance.utils.DefaultAnswerResolver;
 import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.core.reference.RootTranslator;
-import org.javarosa.core.util.externalizable.DeserializationException;
-import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryModel;
 import org.javarosa.xform.parse.XFormParseException;
 import org.javarosa.xform.parse.XFormParser;
 import org.javarosa.xform.util.XFormUtils;
 import org.javarosa.xpath.XPathTypeMismatchException;
+import org.kxml2.kdom.Document;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FileFingerprintStore;
+import org.odk.collect.android.database.ItemsetCache;
 import org.odk.collect.android.database.ItemsetDbAdapter;
+import org.odk.collect.android.database.ItemsetQuery;
 import org.odk.collect.android.external.ExternalAnswerResolver;
 import org.odk.collect.android.external.ExternalDataHandler;
+import org.odk.collect.android.external.ExternalDataIndexer;
 import org.odk.collect.android.external.ExternalDataManager;
 import org.odk.collect.android.external.ExternalDataManagerImpl;
 import org.odk.collect.android.external.ExternalDataReader;
@@ -50,22 +53,30 @@ import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.logic.FileReferenceFactory;
 import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.preferences.AdminPreferencesActivity;
-import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.CsvTokenizer;
+import org.odk.collect.android.utilities.FormDefCache;
 import org.odk.collect.android.utilities.ZipUtils;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-
-import au.com.bytecode.opencsv.CSVReader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Background task for loading a form.
@@ -76,6 +87,7 @@ import au.com.bytecode.opencsv.CSVReader;
 public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FECWrapper> {
     private final static String t = "FormLoaderTask";
     private static final String ITEMSETS_CSV = "itemsets.csv";
+    private static final int INSTANCE_READ_BUFFER_SIZE = 16 * 1024;
 
     private FormLoaderListener mStateListener;
     private String mErrorMsg;
@@ -88,6 +100,21 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     private Intent intent = null;
     private ExternalDataManager externalDataManager;
 
+    // load phases running on the worker pool
+    private Future<?> mExternalDataLoad;
+    private Future<?> mItemsetsLoad;
+    private Future<TreeElement> mSavedRootLoad;
+
+    // bounded pool shared by all loads for the phases that don't depend on each other
+    private static final ThreadPoolExecutor sLoadExecutor;
+
+    static {
+        int threads = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 3));
+        sLoadExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        sLoadExecutor.allowCoreThreadTimeOut(true);
+    }
+
     protected class FECWrapper {
         FormController controller;
         boolean usedSavepoint;
@@ -125,16 +152,80 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
      */
     @Override
     protected FECWrapper doInBackground(String... path) {
-        FormEntryController fec = null;
-        FormDef fd = null;
-        FileInputStream fis = null;
         mErrorMsg = null;
 
         String formPath = path[0];
-
         File formXml = new File(formPath);
-        String formHash = FileUtils.getMd5Hash(formXml);
-        File formBin = new File(Collect.CACHE_PATH + File.separator + formHash + ".formdef");
+
+        // set paths to /sdcard/odk/forms/formfilename-media/
+        String formFileName = formXml.getName().substring(0, formXml.getName().lastIndexOf("."));
+        final File formMediaDir = new File(formXml.getParent(), formFileName + "-media");
+
+        // pick the saved instance, or its savepoint, up front so it can be parsed in parallel
+        File instance = null;
+        boolean usedSavepoint = false;
+        if (mInstancePath != null) {
+            instance = new File(mInstancePath);
+            File shadowInstance = SaveToDiskTask.savepointFile(instance);
+            if (shadowInstance.exists() && (shadowInstance.lastModified()
+                    > instance.lastModified())) {
+                // the savepoint is newer than the saved value of the instance.
+                // use it.
+                usedSavepoint = true;
+                instance = shadowInstance;
+                Log.w(t, "Loading instance from shadow file: "
+                        + shadowInstance.getAbsolutePath());
+            }
+        }
+
+        // zip files may contain the csvs, so they have to be extracted before anything else
+        try {
+            unzipMediaFiles(formMediaDir);
+        } catch (Exception e) {
+            mErrorMsg = e.getMessage();
+            e.printStackTrace();
+            return null;
+        }
+
+        // the csv imports and the parsing of the saved instance don't depend on the FormDef,
+        // so run them on the worker pool while the FormDef is being loaded
+        mExternalDataLoad = sLoadExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                loadExternalData(formMediaDir);
+            }
+        });
+        mItemsetsLoad = sLoadExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                loadItemsets(formMediaDir);
+            }
+        });
+        if (instance != null && instance.exists()) {
+            final File instanceFile = instance;
+            mSavedRootLoad = sLoadExecutor.submit(new Callable<TreeElement>() {
+                @Override
+                public TreeElement call() {
+                    return readSavedRoot(instanceFile);
+                }
+            });
+        }
+
+        try {
+            return loadForm(formXml, formMediaDir, usedSavepoint);
+        } finally {
+            // never leave a worker writing to the databases once the load is over
+            waitForWorkers();
+        }
+    }
+
+    private FECWrapper loadForm(File formXml, File formMediaDir, boolean usedSavepoint) {
+        FormEntryController fec = null;
+        FormDef fd = null;
+        FileInputStream fis = null;
+
+        String formHash = FileFingerprintStore.getInstance().getMd5Hash(formXml);
+        File formBin = FormDefCache.getFormDefFile(formHash);
 
         publishProgress(
                 Collect.getInstance().getString(R.string.survey_loading_reading_form_message));
@@ -151,7 +242,10 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
 //      }
 //    });
 
-        if (formBin.exists()) {
+        fd = FormDefCache.getInstance().get(formHash);
+        if (fd != null) {
+            Log.i(t, "Loaded " + formXml.getName() + " from the in-memory template cache");
+        } else if (formBin.exists()) {
             // if we have binary, deserialize binary
             Log.i(
                     t,
@@ -176,7 +270,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 if (fd == null) {
                     mErrorMsg = "Error reading XForm file";
                 } else {
-                    serializeFormDef(fd, formPath);
+                    serializeFormDef(fd, formXml.getAbsolutePath());
                 }
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
@@ -196,10 +290,6 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
             return null;
         }
 
-        // set paths to /sdcard/odk/forms/formfilename-media/
-        String formFileName = formXml.getName().substring(0, formXml.getName().lastIndexOf("."));
-        File formMediaDir = new File(formXml.getParent(), formFileName + "-media");
-
         externalDataManager = new ExternalDataManagerImpl(formMediaDir);
 
         // add external data function handlers
@@ -207,8 +297,9 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 externalDataManager);
         fd.getEvaluationContext().addFunctionHandler(externalDataHandlerPull);
 
+        // pulldata() and the external answer resolver need the imported csvs
         try {
-            loadExternalData(formMediaDir);
+            getResult(mExternalDataLoad);
         } catch (Exception e) {
             mErrorMsg = e.getMessage();
             e.printStackTrace();
@@ -220,30 +311,27 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
             return null;
         }
 
+        // index the dataset columns the form looks rows up by; not having them is only slower
+        try {
+            ExternalDataIndexer.createIndexes(fd, formXml, formMediaDir, externalDataManager);
+        } catch (Exception e) {
+            Log.e(t, "Unable to index the external data of " + formXml.getName(), e);
+        }
+
         // create FormEntryController from formdef
         FormEntryModel fem = new FormEntryModel(fd);
         fec = new FormEntryController(fem);
 
-        boolean usedSavepoint = false;
-
         try {
             // import existing data into formdef
             if (mInstancePath != null) {
-                File instance = new File(mInstancePath);
-                File shadowInstance = SaveToDiskTask.savepointFile(instance);
-                if (shadowInstance.exists() && (shadowInstance.lastModified()
-                        > instance.lastModified())) {
-                    // the savepoint is newer than the saved value of the instance.
-                    // use it.
-                    usedSavepoint = true;
-                    instance = shadowInstance;
-                    Log.w(t, "Loading instance from shadow file: "
-                            + shadowInstance.getAbsolutePath());
-                }
-                if (instance.exists()) {
+                if (mSavedRootLoad != null) {
                     // This order is important. Import data, then initialize.
                     try {
-                        importData(instance, fec);
+                        importData(getResult(mSavedRootLoad), fec);
+                        if (usedSavepoint) {
+                            replaySavePointJournal(fd);
+                        }
                         fd.initialize(false, new InstanceInitializationFactory());
                     } catch (RuntimeException e) {
                         Log.e(t, e.getMessage(), e);
@@ -289,41 +377,22 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         // Remove previous forms
         ReferenceManager._().clearSession();
 
-        // for itemsets.csv, we only check to see if the itemset file has been
-        // updated
-        File csv = new File(formMediaDir.getAbsolutePath() + "/" + ITEMSETS_CSV);
-        String csvmd5 = null;
-        if (csv.exists()) {
-            csvmd5 = FileUtils.getMd5Hash(csv);
-            boolean readFile = false;
-            ItemsetDbAdapter ida = new ItemsetDbAdapter();
-            ida.open();
-            // get the database entry (if exists) for this itemsets.csv, based
-            // on the path
-            Cursor c = ida.getItemsets(csv.getAbsolutePath());
-            if (c != null) {
-                if (c.getCount() == 1) {
-                    c.moveToFirst(); // should be only one, ever, if any
-                    String oldmd5 = c.getString(c.getColumnIndex("hash"));
-                    if (oldmd5.equals(csvmd5)) {
-                        // they're equal, do nothing
-                    } else {
-                        // the csv has been updated, delete the old entries
-                        ida.dropTable(ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()),
-                                csv.getAbsolutePath());
-                        // and read the new
-                        readFile = true;
-                    }
-                } else {
-                    // new csv, add it
-                    readFile = true;
-                }
-                c.close();
-            }
-            ida.close();
-            if (readFile) {
-                readCSV(csv, csvmd5, ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()));
-            }
+        try {
+            getResult(mItemsetsLoad);
+        } catch (Exception e) {
+            mErrorMsg = e.getMessage();
+            e.printStackTrace();
+            return null;
+        }
+
+        // parse the queries of the form's cascading selects once, and index the itemset columns
+        // they filter on; not having the indexes is only slower
+        List<ItemsetQuery> itemsetQueries = ItemsetQuery.findAll(fd.getChildren());
+        ItemsetCache.getInstance().setQueries(itemsetQueries);
+        try {
+            indexItemsets(itemsetQueries, formMediaDir);
+        } catch (Exception e) {
+            Log.e(t, "Unable to index the itemsets of " + formXml.getName(), e);
         }
 
         // This should get moved to the Application Class
@@ -333,6 +402,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         }
 
         // Set jr://... to point to /sdcard/odk/forms/filename-media/
+        String formFileName = formXml.getName().substring(0, formXml.getName().lastIndexOf("."));
         ReferenceManager._().addSessionRootTranslator(
                 new RootTranslator("jr://images/", "jr://file/forms/" + formFileName + "-media/"));
         ReferenceManager._().addSessionRootTranslator(
@@ -347,7 +417,6 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         fd = null;
         formBin = null;
         formXml = null;
-        formPath = null;
 
         FormController fc = new FormController(formMediaDir, fec, mInstancePath == null ? null
                 : new File(mInstancePath));
@@ -366,8 +435,51 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
 
     }
 
-    @SuppressWarnings("unchecked")
-    private void loadExternalData(File mediaFolder) {
+    /**
+     * Waits for a load phase running on the worker pool and rethrows whatever it threw.
+     */
+    private static <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private void waitForWorkers() {
+        boolean interrupted = false;
+        for (Future<?> future : new Future<?>[]{mExternalDataLoad, mItemsetsLoad, mSavedRootLoad}) {
+            while (future != null) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // the task was cancelled; keep waiting so the databases are left consistent
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Log.e(t, "Load phase failed", e.getCause());
+                    break;
+                }
+            }
+        }
+        mExternalDataLoad = null;
+        mItemsetsLoad = null;
+        mSavedRootLoad = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void unzipMediaFiles(File mediaFolder) {
         // SCTO-594
         File[] zipFiles = mediaFolder.listFiles(new FileFilter() {
             @Override
@@ -385,7 +497,9 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 }
             }
         }
+    }
 
+    private void loadExternalData(File mediaFolder) {
         File[] csvFiles = mediaFolder.listFiles(new FileFilter() {
             @Override
             public boolean accept(File file) {
@@ -416,6 +530,75 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         }
     }
 
+    private void loadItemsets(File mediaFolder) {
+        // for itemsets.csv, we only check to see if the itemset file has been
+        // updated
+        File csv = new File(mediaFolder.getAbsolutePath() + "/" + ITEMSETS_CSV);
+        String csvmd5 = null;
+        if (csv.exists()) {
+            csvmd5 = FileFingerprintStore.getInstance().getMd5Hash(csv);
+            boolean readFile = false;
+            ItemsetDbAdapter ida = new ItemsetDbAdapter();
+            ida.open();
+            // get the database entry (if exists) for this itemsets.csv, based
+            // on the path
+            Cursor c = ida.getItemsets(csv.getAbsolutePath());
+            if (c != null) {
+                if (c.getCount() == 1) {
+                    c.moveToFirst(); // should be only one, ever, if any
+                    String oldmd5 = c.getString(c.getColumnIndex("hash"));
+                    if (oldmd5.equals(csvmd5)) {
+                        // they're equal, do nothing
+                    } else {
+                        // the csv has been updated, delete the old entries
+                        ida.dropTable(ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()),
+                                csv.getAbsolutePath());
+                        // and read the new
+                        readFile = true;
+                    }
+                } else {
+                    // new csv, add it
+                    readFile = true;
+                }
+                c.close();
+            }
+            ida.close();
+            if (readFile) {
+                readCSV(csv, csvmd5, ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()));
+            }
+            // choices cached from a previous version of the csv are no longer any good
+            ItemsetCache.getInstance().setItemsetsHash(csv.getAbsolutePath(), csvmd5);
+        }
+    }
+
+    private void indexItemsets(List<ItemsetQuery> queries, File mediaFolder) {
+        File csv = new File(mediaFolder.getAbsolutePath() + "/" + ITEMSETS_CSV);
+        if (!csv.exists()) {
+            return;
+        }
+
+        List<List<String>> indexes = new ArrayList<List<String>>();
+        for (ItemsetQuery query : queries) {
+            indexes.addAll(query.getIndexedColumns());
+        }
+        if (indexes.isEmpty()) {
+            return;
+        }
+
+        ItemsetDbAdapter ida = new ItemsetDbAdapter();
+        ida.open();
+        try {
+            int created = ida.createIndexes(
+                    ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()),
+                    csv.getAbsolutePath(), indexes);
+            if (created > 0) {
+                Log.i(t, "Created " + created + " indexes on " + csv.getAbsolutePath());
+            }
+        } finally {
+            ida.close();
+        }
+    }
+
     public void publishExternalDataLoadingProgress(String message) {
         publishProgress(message);
     }
@@ -432,14 +615,48 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     }
 
     public boolean importData(File instanceFile, FormEntryController fec) {
+        return importData(readSavedRoot(instanceFile), fec);
+    }
+
+    /**
+     * Parses the saved instance. Doesn't touch the FormDef, so it can run while the form is
+     * still being loaded.
+     */
+    private TreeElement readSavedRoot(File instanceFile) {
         publishProgress(
                 Collect.getInstance().getString(R.string.survey_loading_reading_data_message));
 
-        // convert files into a byte array
-        byte[] fileBytes = FileUtils.getFileAsBytes(instanceFile);
+        return restoreSavedRoot(instanceFile);
+    }
 
-        // get the root of the saved and template instances
-        TreeElement savedRoot = XFormParser.restoreDataModel(fileBytes, null).getRoot();
+    /**
+     * Streams a saved instance into the parser instead of reading the whole file into memory
+     * first.
+     *
+     * @return the root of the saved instance
+     */
+    public static TreeElement restoreSavedRoot(File instanceFile) {
+        Reader reader = null;
+        try {
+            reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(instanceFile), "UTF-8"),
+                    INSTANCE_READ_BUFFER_SIZE);
+            Document doc = XFormParser.getXMLDocument(reader);
+            if (doc == null) {
+                throw new XFormParseException("syntax error in XML instance; could not parse");
+            }
+            return XFormParser.restoreDataModel(doc, null).getRoot();
+        } catch (IOException e) {
+            throw new XFormParseException(
+                    "Bad parsing of " + instanceFile.getName() + ": " + e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    private boolean importData(TreeElement savedRoot, FormEntryController fec) {
+        // get the root of the template instance. The copy is only as big as the blank form, and
+        // leaving the original untouched lets a corrupt savepoint fall back to a new instance.
         TreeElement templateRoot = fec.getModel().getForm().getInstance().getRoot().deepCopy(true);
 
         // weak check for matching forms
@@ -474,6 +691,18 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         }
     }
 
+    /**
+     * Applies the answers journaled since the savepoint was written in full.
+     */
+    private void replaySavePointJournal(FormDef fd) {
+        XFormParser.setAnswerResolver(new ExternalAnswerResolver());
+        try {
+            SavePointJournal.replay(new File(mInstancePath), fd);
+        } finally {
+            XFormParser.setAnswerResolver(new DefaultAnswerResolver());
+        }
+    }
+
     /**
      * Read serialized {@link FormDef} from file and recreate as object.
      *
@@ -481,34 +710,17 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
      * @return {@link FormDef} object
      */
     public FormDef deserializeFormDef(File formDef) {
-
-        // TODO: any way to remove reliance on jrsp?
-        FileInputStream fis = null;
-        FormDef fd = null;
-        try {
-            // create new form def
-            fd = new FormDef();
-            fis = new FileInputStream(formDef);
-            DataInputStream dis = new DataInputStream(fis);
-
-            // read serialized formdef into new formdef
-            fd.readExternal(dis, ExtUtil.defaultPrototypes());
-            dis.close();
-
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            fd = null;
-        } catch (IOException e) {
-            e.printStackTrace();
-            fd = null;
-        } catch (DeserializationException e) {
-            e.printStackTrace();
-            fd = null;
-        } catch (Exception e) {
-            e.printStackTrace();
-            fd = null;
+        byte[] serialized = FormDefCache.readFormDefFile(formDef);
+        if (serialized == null) {
+            return null;
         }
 
+        FormDef fd = FormDefCache.deserialize(serialized);
+        if (fd != null) {
+            // keep the pristine template around for the next open of this form
+            String name = formDef.getName();
+            FormDefCache.getInstance().put(name.substring(0, name.lastIndexOf('.')), serialized);
+        }
         return fd;
     }
 
@@ -519,23 +731,19 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
      */
     public void serializeFormDef(FormDef fd, String filepath) {
         // calculate unique md5 identifier
-        String hash = FileUtils.getMd5Hash(new File(filepath));
-        File formDef = new File(Collect.CACHE_PATH + File.separator + hash + ".formdef");
+        String hash = FileFingerprintStore.getInstance().getMd5Hash(new File(filepath));
+        File formDef = FormDefCache.getFormDefFile(hash);
 
-        // formdef does not exist, create one.
-        if (!formDef.exists()) {
-            FileOutputStream fos;
-            try {
-                fos = new FileOutputStream(formDef);
-                DataOutputStream dos = new DataOutputStream(fos);
-                fd.writeExternal(dos);
-                dos.flush();
-                dos.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
+        try {
+            // the FormDef has not been initialized yet, so this is the pristine template
+            byte[] serialized = FormDefCache.getInstance().put(hash, fd);
+
+            // formdef does not exist, create one.
+            if (!formDef.exists()) {
+                FormDefCache.writeFormDefFile(formDef, serialized);
             }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -615,37 +823,47 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
 
     private void readCSV(File csv, String formHash, String pathHash) {
 
-        CSVReader reader;
+        CsvTokenizer reader = null;
         ItemsetDbAdapter ida = new ItemsetDbAdapter();
         ida.open();
         boolean withinTransaction = false;
 
         try {
-            reader = new CSVReader(new FileReader(csv));
+            reader = new CsvTokenizer(new FileReader(csv));
 
-            String[] nextLine;
             String[] columnHeaders = null;
             int lineNumber = 0;
-            while ((nextLine = reader.readNext()) != null) {
+            while (reader.next()) {
                 lineNumber++;
                 if (lineNumber == 1) {
                     // first line of csv is column headers
-                    columnHeaders = nextLine;
+                    columnHeaders = reader.getFields();
                     ida.createTable(formHash, pathHash, columnHeaders,
                             csv.getAbsolutePath());
                     continue;
                 }
-                // add the rest of the lines to the specified database
-                // nextLine[] is an array of values from the line
-                // System.out.println(nextLine[4] + "etc...");
+                // add the rest of the lines to the specified database, straight from the
+                // tokenizer
                 if (lineNumber == 2) {
                     // start a transaction for the inserts
                     withinTransaction = true;
                     ida.beginTransaction();
                 }
-                ida.addRow(pathHash, columnHeaders, nextLine);
+                ida.addRow(pathHash, columnHeaders, reader);
 
             }
+            if (withinTransaction) {
+                ida.commit();
+                withinTransaction = false;
+            }
+
+            // every itemset query starts with list_name; the form's own filter columns are
+            // indexed once the form is loaded
+            if (columnHeaders != null) {
+                ida.createIndexes(pathHash, csv.getAbsolutePath(),
+                        Collections.singletonList(
+                                Collections.singletonList(ItemsetQuery.LIST_NAME_COLUMN)));
+            }
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -653,6 +871,13 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 ida.commit();
             }
             ida.close();
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(t, "Unable to close " + csv.getName(), e);
+                }
+            }
         }
     }
 }
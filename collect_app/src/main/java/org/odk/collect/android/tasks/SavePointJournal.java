@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.tasks;
+
+import android.util.Log;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.services.transport.payload.ByteArrayPayload;
+import org.javarosa.core.model.Constants;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.data.UncastData;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.model.instance.utils.DefaultAnswerResolver;
+import org.javarosa.core.model.instance.utils.IAnswerResolver;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.ExtWrapNullable;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+import org.javarosa.xform.parse.XFormParser;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.logic.FormController;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the answers changed since the last full savepoint of a form.
+ *
+ * The journal sits next to the .save file. Every full savepoint ends in a comment holding a random
+ * generation, and the journal starts with a header naming the generation of the .save it applies
+ * to, so a journal left over from an older savepoint is never replayed on top of a newer one.
+ * The generation is written into the .save itself because a file of its own couldn't be replaced
+ * together with it: a crash between the two would pair the new .save with the old journal, or
+ * drop the journal the old .save still needs. Each savepoint then appends one batch of answers,
+ * prefixed with its length and CRC32; a batch torn by a crash fails its check and ends the
+ * replay. Anything an answer can't express (repeats added or removed) and a journal that has
+ * grown too long are handled by writing a full savepoint again and starting a new journal.
+ */
+public class SavePointJournal {
+    private static final String t = "SavePointJournal";
+
+    private static final int MAGIC = 0x4f444b4a; // "ODKJ"
+    private static final int VERSION = 2;
+
+    // the comment at the end of a full savepoint; the generation is written as 16 hex digits
+    private static final String GENERATION_PREFIX = "\n<!-- savepoint generation ";
+    private static final String GENERATION_SUFFIX = " -->\n";
+    private static final int GENERATION_LENGTH = GENERATION_PREFIX.length() + 16
+            + GENERATION_SUFFIX.length();
+    private static final long NO_GENERATION = 0;
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    // write a full savepoint again after this many batches
+    private static final int MAX_BATCHES = 50;
+
+    private final WeakReference<FormController> mFormController;
+    private final File mSavepoint;
+    private final File mJournal;
+
+    // the full savepoint the journal applies to; only known once this journal has written it
+    private boolean mHasBase = false;
+    private long mBaseLength;
+    private long mBaseGeneration;
+    private int mBaseNodeCount;
+    private int mBaseStructureVersion;
+    private int mBatches;
+
+    public SavePointJournal(FormController formController) {
+        mFormController = new WeakReference<FormController>(formController);
+        mSavepoint = SaveToDiskTask.savepointFile(formController.getInstancePath());
+        mJournal = journalFile(formController.getInstancePath());
+    }
+
+    /**
+     * Return the name of the savepoint journal file for a given instance.
+     */
+    public static File journalFile(File instancePath) {
+        File tempDir = new File(Collect.CACHE_PATH);
+        return new File(tempDir, instancePath.getName() + ".save.journal");
+    }
+
+    public boolean isFor(FormController formController) {
+        return mFormController.get() == formController
+                && mSavepoint.equals(SaveToDiskTask.savepointFile(formController.getInstancePath()));
+    }
+
+    /**
+     * @return true if the next savepoint has to be written in full
+     */
+    public boolean needsFullSavePoint(int nodeCount, int structureVersion) {
+        return !mHasBase
+                || mBatches >= MAX_BATCHES
+                || nodeCount != mBaseNodeCount
+                || structureVersion != mBaseStructureVersion
+                || readGeneration(mSavepoint) != mBaseGeneration
+                || mJournal.length() > mBaseLength;
+    }
+
+    /**
+     * Writes a full savepoint, marked with a new generation, and starts a new, empty journal on
+     * top of it.
+     */
+    public void writeFullSavePoint(ByteArrayPayload payload, int nodeCount, int structureVersion)
+            throws IOException {
+        mHasBase = false;
+        long generation;
+        do {
+            generation = sRandom.nextLong();
+        } while (generation == NO_GENERATION);
+
+        byte[] marker = (GENERATION_PREFIX + String.format(Locale.US, "%016x", generation)
+                + GENERATION_SUFFIX).getBytes("UTF-8");
+        SaveToDiskTask.exportXmlFile(new SequenceInputStream(payload.getPayloadStream(),
+                new ByteArrayInputStream(marker)), mSavepoint.getAbsolutePath());
+
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mJournal, false)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+        } finally {
+            out.close();
+        }
+
+        mBaseLength = mSavepoint.length();
+        mBaseGeneration = generation;
+        mBaseNodeCount = nodeCount;
+        mBaseStructureVersion = structureVersion;
+        mBatches = 0;
+        mHasBase = true;
+    }
+
+    /**
+     * Appends one batch of answers and syncs it to disk.
+     *
+     * @return the number of bytes appended
+     */
+    public int append(Map<TreeReference, IAnswerData> answers) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(bos);
+        records.writeInt(answers.size());
+        for (Map.Entry<TreeReference, IAnswerData> entry : answers.entrySet()) {
+            IAnswerData data = entry.getValue();
+            ExtUtil.write(records, entry.getKey());
+            ExtUtil.write(records,
+                    new ExtWrapNullable(data == null ? null : data.uncast().getString()));
+        }
+        records.close();
+        byte[] batch = bos.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(batch, 0, batch.length);
+
+        FileOutputStream fos = new FileOutputStream(mJournal, true);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(batch.length);
+            out.writeLong(crc.getValue());
+            out.write(batch);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            IOUtils.closeQuietly(fos);
+        }
+        mBatches++;
+        return batch.length;
+    }
+
+    /**
+     * Applies the journal of an instance to a form that has just been filled in from the
+     * instance's savepoint. Must be called before the form is initialized.
+     *
+     * @return the number of answers applied
+     */
+    public static int replay(File instancePath, FormDef fd) {
+        File savepoint = SaveToDiskTask.savepointFile(instancePath);
+        File journal = journalFile(instancePath);
+        if (!journal.exists()) {
+            return 0;
+        }
+
+        int applied = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+            long generation = readGeneration(savepoint);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || generation == NO_GENERATION || in.readLong() != generation) {
+                Log.w(t, journal.getName() + " doesn't belong to the savepoint; ignoring it");
+                return 0;
+            }
+
+            PrototypeFactory pf = ExtUtil.defaultPrototypes();
+            FormInstance instance = fd.getMainInstance();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                long storedCrc = in.readLong();
+                if (length < 0 || length > journal.length()) {
+                    Log.w(t, journal.getName() + " has a corrupt batch; stopping there");
+                    break;
+                }
+                byte[] batch = new byte[length];
+                in.readFully(batch);
+
+                CRC32 crc = new CRC32();
+                crc.update(batch, 0, length);
+                if (crc.getValue() != storedCrc) {
+                    Log.w(t, journal.getName() + " has a torn batch; stopping there");
+                    break;
+                }
+
+                DataInputStream records = new DataInputStream(new ByteArrayInputStream(batch));
+                int count = records.readInt();
+                for (int i = 0; i < count; i++) {
+                    TreeReference ref = (TreeReference) ExtUtil.read(records,
+                            TreeReference.class, pf);
+                    String value = (String) ExtUtil.read(records,
+                            new ExtWrapNullable(String.class), pf);
+                    TreeElement element = instance.resolveReference(ref);
+                    if (element == null) {
+                        Log.w(t, "Skipping journaled answer for missing node " + ref);
+                        continue;
+                    }
+                    setValue(element, value, fd);
+                    applied++;
+                }
+            }
+        } catch (EOFException e) {
+            Log.w(t, journal.getName() + " ends in a partial batch");
+        } catch (IOException e) {
+            Log.e(t, "Unable to read " + journal.getAbsolutePath(), e);
+        } catch (DeserializationException e) {
+            Log.e(t, "Unable to read " + journal.getAbsolutePath(), e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        Log.i(t, "Replayed " + applied + " answers from " + journal.getName());
+        return applied;
+    }
+
+    /**
+     * @return the generation a full savepoint ends with, or {@link #NO_GENERATION} if it is
+     * missing or wasn't written by {@link #writeFullSavePoint}
+     */
+    private static long readGeneration(File savepoint) {
+        if (savepoint.length() < GENERATION_LENGTH) {
+            return NO_GENERATION;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(savepoint, "r");
+            byte[] tail = new byte[GENERATION_LENGTH];
+            raf.seek(raf.length() - GENERATION_LENGTH);
+            raf.readFully(tail);
+
+            String marker = new String(tail, "UTF-8");
+            if (!marker.startsWith(GENERATION_PREFIX) || !marker.endsWith(GENERATION_SUFFIX)) {
+                return NO_GENERATION;
+            }
+            // parsed as unsigned: the generation can be any long
+            return new BigInteger(marker.substring(GENERATION_PREFIX.length(),
+                    GENERATION_LENGTH - GENERATION_SUFFIX.length()), 16).longValue();
+        } catch (IOException e) {
+            Log.e(t, "Unable to read " + savepoint.getAbsolutePath(), e);
+            return NO_GENERATION;
+        } catch (NumberFormatException e) {
+            return NO_GENERATION;
+        } finally {
+            IOUtils.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * The same conversion {@link TreeElement#populate(TreeElement, FormDef)} applies to the
+     * answers read from the savepoint itself.
+     */
+    private static void setValue(TreeElement element, String value, FormDef fd) {
+        if (value == null) {
+            element.setValue(null);
+        } else if (element.getDataType() == Constants.DATATYPE_TEXT
+                || element.getDataType() == Constants.DATATYPE_NULL) {
+            element.setValue(new UncastData(value));
+        } else {
+            IAnswerResolver resolver = XFormParser.getAnswerResolver();
+            if (resolver == null) {
+                resolver = new DefaultAnswerResolver();
+            }
+            element.setValue(resolver.resolveAnswer(value, element, fd));
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.tasks;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import org.javarosa.core.services.transport.payload.ByteArrayPayload;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.listeners.SavePointListener;
+import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.logic.FormController.InstanceSnapshot;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes savepoints of the form being filled in, so that it can be recovered if the app is killed.
+ *
+ * Requests made while swiping are coalesced: each one restarts a short debounce window and only
+ * the last one is written, on a dedicated background thread rather than the shared AsyncTask
+ * executor. At most one write is waiting behind the one in progress, and a write is skipped
+ * altogether when no answer has changed since the last savepoint. Writes work from an
+ * {@link InstanceSnapshot}, so they can run while the enumerator keeps answering questions.
+ * The scheduler is process-wide, so the journal of the form survives the activity being
+ * recreated.
+ *
+ * All methods except {@link #awaitWrites()} must be called from the main thread.
+ */
+public class SavePointScheduler {
+    private static final String t = "SavePointScheduler";
+
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 1000;
+
+    private static SavePointScheduler singleton = null;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, t);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Runnable mDebounced = new Runnable() {
+        @Override
+        public void run() {
+            submitWrite();
+        }
+    };
+
+    // set while a write is waiting for the writer thread to pick it up
+    private final AtomicBoolean mWriteQueued = new AtomicBoolean(false);
+
+    // bumped by cancel() so that writes queued before it don't run
+    private volatile int mGeneration = 0;
+
+    private long mDebounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+    private SavePointListener mListener = null;
+
+    // only used on the writer thread
+    private SavePointJournal mJournal = null;
+    private int mSavedStructureVersion = 0;
+
+    // metrics, guarded by this
+    private int mRequests = 0;
+    private int mWrites = 0;
+    private int mFullWrites = 0;
+    private int mSkipped = 0;
+    private long mBytesWritten = 0;
+    private long mWriteMillis = 0;
+    private long mMaxWriteMillis = 0;
+
+    private SavePointScheduler() {
+    }
+
+    public static synchronized SavePointScheduler getInstance() {
+        if (singleton == null) {
+            singleton = new SavePointScheduler();
+        }
+        return singleton;
+    }
+
+    /**
+     * Sets how long to wait for further requests before writing a savepoint.
+     */
+    public void setDebounceMillis(long debounceMillis) {
+        mDebounceMillis = debounceMillis;
+    }
+
+    public void setListener(SavePointListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Clears the listener, unless another one has been set since.
+     */
+    public void removeListener(SavePointListener listener) {
+        if (mListener == listener) {
+            mListener = null;
+        }
+    }
+
+    /**
+     * Requests a savepoint, which is written once no other request has come in for the debounce
+     * window.
+     */
+    public void schedule() {
+        countRequest();
+        mHandler.removeCallbacks(mDebounced);
+        mHandler.postDelayed(mDebounced, mDebounceMillis);
+    }
+
+    /**
+     * Writes a savepoint without waiting for the debounce window, e.g. when the activity may be
+     * about to be killed.
+     */
+    public void saveNow() {
+        countRequest();
+        mHandler.removeCallbacks(mDebounced);
+        submitWrite();
+    }
+
+    /**
+     * Drops any savepoint that has been requested but not started, because the form is being
+     * saved or discarded and the savepoint would no longer be wanted. A savepoint that is already
+     * being written still finishes, and could recreate the .save and journal the caller is about
+     * to delete, so the deleting has to wait for it through {@link #awaitWrites()} or
+     * {@link #runAfterWrites(Runnable)}. This doesn't wait itself, since a full savepoint of a
+     * large form can take long enough to freeze the screen.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mDebounced);
+        mGeneration++;
+    }
+
+    /**
+     * Runs the task on the writer thread once the savepoint being written, if any, is done.
+     */
+    public void runAfterWrites(Runnable task) {
+        mWriter.execute(task);
+    }
+
+    /**
+     * Waits for the savepoint being written, if any. Must not be called from the main thread.
+     */
+    public void awaitWrites() {
+        // the writer runs one task at a time, so once this has run nothing is being written
+        Future<?> barrier = mWriter.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        boolean interrupted = false;
+        while (true) {
+            try {
+                barrier.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submitWrite() {
+        if (!mWriteQueued.compareAndSet(false, true)) {
+            // the write that is already waiting will pick up these answers too
+            return;
+        }
+
+        final int generation = mGeneration;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                mWriteQueued.set(false);
+                if (generation != mGeneration) {
+                    Log.i(t, "Savepoint was cancelled before it started");
+                    return;
+                }
+
+                final String errorMessage = write();
+                if (errorMessage != null) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mListener != null) {
+                                mListener.onSavePointError(errorMessage);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * @return an error message, or null if the savepoint was written or wasn't needed
+     */
+    private String write() {
+        long start = System.currentTimeMillis();
+
+        try {
+            FormController formController = Collect.getInstance().getFormController();
+            if (formController == null) {
+                return null;
+            }
+
+            if (mJournal == null || !mJournal.isFor(formController)) {
+                mJournal = new SavePointJournal(formController);
+                // a form controller starts out matching what it was loaded from
+                mSavedStructureVersion = 0;
+            }
+
+            // the answers are all a journal batch needs, so only copy the instance if the
+            // savepoint has to be written in full
+            InstanceSnapshot snapshot = formController.takeSnapshot(false);
+            if (snapshot.unsavedAnswers.isEmpty()
+                    && snapshot.structureVersion == mSavedStructureVersion) {
+                countSkipped();
+                return null;
+            }
+
+            long bytes;
+            boolean full = mJournal.needsFullSavePoint(snapshot.nodeCount,
+                    snapshot.structureVersion);
+            if (full) {
+                snapshot = formController.takeSnapshot(true);
+                ByteArrayPayload payload = snapshot.getFilledInFormXml();
+
+                // write out xml
+                mJournal.writeFullSavePoint(payload, snapshot.nodeCount,
+                        snapshot.structureVersion);
+                bytes = payload.getLength();
+            } else {
+                // only journal what changed since the last savepoint
+                bytes = mJournal.append(snapshot.unsavedAnswers);
+            }
+            formController.markAnswersSaved(snapshot.unsavedAnswers);
+            mSavedStructureVersion = snapshot.structureVersion;
+
+            countWrite(full, snapshot.unsavedAnswers.size(), bytes,
+                    System.currentTimeMillis() - start);
+            return null;
+        } catch (Exception e) {
+            String msg = e.getMessage();
+            Log.e(t, msg, e);
+            return msg;
+        }
+    }
+
+    private synchronized void countRequest() {
+        mRequests++;
+    }
+
+    private synchronized void countSkipped() {
+        mSkipped++;
+        Log.i(t, "Savepoint skipped; no answers changed (skipped: " + mSkipped + ")");
+    }
+
+    private synchronized void countWrite(boolean full, int answers, long bytes, long millis) {
+        mWrites++;
+        if (full) {
+            mFullWrites++;
+        }
+        mBytesWritten += bytes;
+        mWriteMillis += millis;
+        mMaxWriteMillis = Math.max(mMaxWriteMillis, millis);
+
+        Log.i(t, (full ? "Full savepoint" : "Savepoint journal") + " of " + answers
+                + " answers: " + bytes + " bytes in " + millis + " ms (requests: " + mRequests
+                + ", writes: " + mWrites + " (" + mFullWrites + " full), skipped: " + mSkipped
+                + ", bytes: " + mBytesWritten + ", avg ms: " + (mWriteMillis / mWrites)
+                + ", max ms: " + mMaxWriteMillis + ")");
+    }
+}
@@ -20,26 +20,33 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.util.Log;
 
+import org.apache.commons.io.IOUtils;
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.javarosa.form.api.FormEntryController;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.InstancesDao;
+import org.odk.collect.android.database.FinalizeQueue;
 import org.odk.collect.android.exception.EncryptionException;
 import org.odk.collect.android.listeners.FormSavedListener;
 import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.logic.FormController.InstanceMetadata;
+import org.odk.collect.android.logic.FormController.InstanceSnapshot;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.services.FinalizeService;
 import org.odk.collect.android.utilities.EncryptionUtils;
 import org.odk.collect.android.utilities.EncryptionUtils.EncryptedFormInformation;
 import org.odk.collect.android.utilities.FileUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
 
 /**
  * Background task for loading a form.
@@ -63,6 +70,8 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
     public static final int SAVED_AND_EXIT = 504;
     public static final int ENCRYPTION_ERROR = 505;
 
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
 
     public SaveToDiskTask(Uri uri, Boolean saveAndExit, Boolean markCompleted, String updatedName) {
         mUri = uri;
@@ -83,6 +92,9 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
 
         FormController formController = Collect.getInstance().getFormController();
 
+        // a savepoint still being written would otherwise recreate the files the save replaces
+        SavePointScheduler.getInstance().awaitWrites();
+
         publishProgress(Collect.getInstance().getString(R.string.survey_saving_validating_message));
 
         try {
@@ -133,6 +145,10 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
             if (shadowInstance.exists()) {
                 FileUtils.deleteAndReport(shadowInstance);
             }
+            File journal = SavePointJournal.journalFile(formController.getInstancePath());
+            if (journal.exists()) {
+                FileUtils.deleteAndReport(journal);
+            }
 
             saveResult.setSaveResult(mSave ? SAVED_AND_EXIT : SAVED);
         } catch (EncryptionException e) {
@@ -250,10 +266,15 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
 
         publishProgress(Collect.getInstance().getString(R.string.survey_saving_collecting_message));
 
-        ByteArrayPayload payload = formController.getFilledInFormXml();
+        // serialize a snapshot of the instance, so that answers can't change halfway through and
+        // the submission below is made from the same answers
+        InstanceSnapshot snapshot = formController.takeSnapshot(true);
+        ByteArrayPayload payload = snapshot.getFilledInFormXml();
         // write out xml
         String instancePath = formController.getInstancePath().getAbsolutePath();
 
+        cancelPendingFinalize(formController.getInstancePath());
+
         publishProgress(Collect.getInstance().getString(R.string.survey_saving_saving_message));
 
         exportXmlFile(payload, instancePath);
@@ -268,7 +289,6 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
             // now see if the packaging of the data for the server would make it
             // non-reopenable (e.g., encryption or send an SMS or other fraction of the form).
             boolean canEditAfterCompleted = formController.isSubmissionEntireForm();
-            boolean isEncrypted = false;
 
             // build a submission.xml to hold the data being submitted
             // and (if appropriate) encrypt the files on the side
@@ -277,52 +297,54 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
             File instanceXml = formController.getInstancePath();
             File submissionXml = new File(instanceXml.getParentFile(), "submission.xml");
 
-            payload = formController.getSubmissionXml();
-
-            // write out submission.xml -- the data to actually submit to aggregate
-
             publishProgress(
                     Collect.getInstance().getString(R.string.survey_saving_finalizing_message));
 
-            exportXmlFile(payload, submissionXml.getAbsolutePath());
-
             // see if the form is encrypted and we can encrypt it...
+            InstanceMetadata metadata = formController.getSubmissionMetadata();
             EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(mUri,
-                    formController.getSubmissionMetadata());
+                    metadata);
             if (formInfo != null) {
-                // if we are encrypting, the form cannot be reopened afterward
-                canEditAfterCompleted = false;
-                // and encrypt the submission (this is a one-way operation)...
-
-                publishProgress(
-                        Collect.getInstance().getString(R.string.survey_saving_encrypting_message));
+                // Encrypting the attachments can take a long time, so leave it to the
+                // FinalizeService. Until it is done, the instance stays saved as incomplete and
+                // re-openable, just as it does if the encryption fails.
+                if (!canEditAfterCompleted) {
+                    // the service has no FormController to extract the submission with
+                    exportXmlFile(snapshot.getSubmissionXml(), new File(
+                            instanceXml.getParentFile(),
+                            FinalizeService.PARTIAL_SUBMISSION_FILE).getAbsolutePath());
+                }
+                FinalizeQueue.getInstance().enqueue(instanceXml, metadata.instanceId,
+                        mInstanceName, canEditAfterCompleted);
+                FinalizeService.start(Collect.getInstance());
+                return;
+            }
 
-                EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo);
-                isEncrypted = true;
+            // a plaintext submission of the entire form is the instance we just wrote, so there
+            // is no submission.xml to build
+            if (!canEditAfterCompleted) {
+                // write out submission.xml -- the data to actually submit to aggregate
+                exportXmlFile(snapshot.getSubmissionXml(), submissionXml.getAbsolutePath());
             }
 
             // At this point, we have:
             // 1. the saved original instanceXml,
             // 2. all the plaintext attachments
-            // 2. the submission.xml that is the completed xml (whether encrypting or not)
-            // 3. all the encrypted attachments if encrypting (isEncrypted = true).
+            // 2. the submission.xml that is the completed xml (if it is only part of the form)
             //
             // NEXT:
             // 1. Update the instance database (with status complete).
             // 2. Overwrite the instanceXml with the submission.xml
-            //    and remove the plaintext attachments if encrypting
 
             updateInstanceDatabase(false, canEditAfterCompleted);
 
             if (!canEditAfterCompleted) {
                 // AT THIS POINT, there is no going back.  We are committed
                 // to returning "success" (true) whether or not we can
-                // rename "submission.xml" to instanceXml and whether or
-                // not we can delete the plaintext media files.
+                // rename "submission.xml" to instanceXml.
                 //
                 // Handle the fall-out for a failed "submission.xml" rename
-                // in the InstanceUploader task.  Leftover plaintext media
-                // files are handled during form deletion.
+                // in the InstanceUploader task.
 
                 // delete the restore Xml file.
                 if (!instanceXml.delete()) {
@@ -339,70 +361,79 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
                     Log.e(t, msg);
                     throw new IOException(msg);
                 }
-            } else {
-                // try to delete the submissionXml file, since it is
-                // identical to the existing instanceXml file
-                // (we don't need to delete and rename anything).
-                if (!submissionXml.delete()) {
-                    String msg = "Error deleting " + submissionXml.getAbsolutePath()
-                            + " (instance is re-openable)";
-                    Log.w(t, msg);
-                }
             }
+        }
+    }
 
-            // if encrypted, delete all plaintext files
-            // (anything not named instanceXml or anything not ending in .enc)
-            if (isEncrypted) {
-                if (!EncryptionUtils.deletePlaintextFiles(instanceXml)) {
-                    Log.e(t, "Error deleting plaintext files for " + instanceXml.getAbsolutePath());
-                }
-            }
+    /**
+     * Drops any background finalize still queued for the instance: it is being saved again, so
+     * that job would package stale data.
+     */
+    private void cancelPendingFinalize(File instanceXml) {
+        FinalizeQueue.getInstance().remove(instanceXml);
+        File partialSubmission = new File(instanceXml.getParentFile(),
+                FinalizeService.PARTIAL_SUBMISSION_FILE);
+        if (partialSubmission.exists()) {
+            FileUtils.deleteAndReport(partialSubmission);
         }
     }
 
 
     /**
      * This method actually writes the xml to disk.
+     *
+     * The payload is streamed to a temporary file next to the target, synced to the storage once
+     * and then renamed over the target, so that a crash or a full sdcard never leaves a truncated
+     * instance behind.
      */
     static void exportXmlFile(ByteArrayPayload payload, String path) throws IOException {
+        exportXmlFile(payload.getPayloadStream(), path);
+    }
+
+    /**
+     * Writes a stream the same way as {@link #exportXmlFile(ByteArrayPayload, String)}, and
+     * closes it.
+     */
+    static void exportXmlFile(InputStream is, String path) throws IOException {
         File file = new File(path);
-        if (file.exists() && !file.delete()) {
-            throw new IOException("Cannot overwrite " + path + ". Perhaps the file is locked?");
+        File temp;
+        try {
+            // hidden, so that the uploader and the encryption skip it if a crash leaves it behind
+            temp = File.createTempFile("." + file.getName(), ".tmp", file.getParentFile());
+        } catch (IOException e) {
+            IOUtils.closeQuietly(is);
+            throw e;
         }
 
-        // create data stream
-        InputStream is = payload.getPayloadStream();
-        int len = (int) payload.getLength();
-
-        // read from data stream
-        byte[] data = new byte[len];
-//        try {
-        int read = is.read(data, 0, len);
-        if (read > 0) {
-            // write xml file
-            RandomAccessFile randomAccessFile = null;
-            try {
-                // String filename = path + File.separator +
-                // path.substring(path.lastIndexOf(File.separator) + 1) + ".xml";
-                randomAccessFile = new RandomAccessFile(file, "rws");
-                randomAccessFile.write(data);
-            } finally {
-                if (randomAccessFile != null) {
-                    try {
-                        randomAccessFile.close();
-                    } catch (IOException e) {
-                        Log.e(t, "Error closing RandomAccessFile: " + path, e);
-                    }
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(temp);
+            OutputStream os = new BufferedOutputStream(fos, WRITE_BUFFER_SIZE);
+            IOUtils.copy(is, os);
+            os.flush();
+            // one sync for the whole file instead of one per write
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+
+            if (!temp.renameTo(file)) {
+                // some filesystems won't rename over an existing file
+                if (file.exists() && !file.delete()) {
+                    throw new IOException(
+                            "Cannot overwrite " + path + ". Perhaps the file is locked?");
+                }
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Unable to rename " + temp.getAbsolutePath() + " to "
+                            + path);
                 }
             }
+        } finally {
+            IOUtils.closeQuietly(fos);
+            IOUtils.closeQuietly(is);
+            if (temp.exists() && !temp.delete()) {
+                Log.w(t, "Unable to delete " + temp.getAbsolutePath());
+            }
         }
-//        } catch (IOException e) {
-//            Log.e(t, "Error reading from payload data stream");
-//            e.printStackTrace();
-//            return false;
-//        }
-//
-//        return false;
     }
 
     @Override
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads a csv one record at a time, splitting it the same way opencsv 2.3's CSVReader does.
+ *
+ * The characters are read into one large buffer that is reused for the whole file, and the
+ * fields of the current record are kept side by side in another, so reading a record allocates
+ * nothing. A String is only made for the fields that are asked for, which is what the imports
+ * bind, and fields missing at the end of a short record read as "".
+ *
+ * Existing forms depend on the quirks of opencsv 2.3, so they are kept: lines end at "\n", "\r"
+ * or "\r\n", and a line break inside quotes becomes "\n"; a quote inside an unquoted field is
+ * kept and whitespace before a quote that isn't at the start of the line is dropped; the escape
+ * character is dropped unless it escapes a quote or itself; and whether a field is in progress
+ * carries over from one line to the next, which affects how a leading "" is read.
+ */
+public class CsvTokenizer implements Closeable {
+
+    public static final char DEFAULT_SEPARATOR = ',';
+    public static final char DEFAULT_QUOTE_CHARACTER = '"';
+    public static final char DEFAULT_ESCAPE_CHARACTER = '\\';
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_FIELDS = 16;
+
+    private final Reader mReader;
+    private final char mSeparator;
+    private final char mQuote;
+    private final char mEscape;
+
+    // the characters read from the file; a whole line is always kept in one piece
+    private char[] mBuffer = new char[BUFFER_SIZE];
+    private int mBufferStart = 0;
+    private int mBufferEnd = 0;
+    private boolean mEndOfInput = false;
+    // a "\r" ended the last line, so a "\n" right after it belongs to it
+    private boolean mSkipLineFeed = false;
+
+    // the current line, as [mLineStart, mLineEnd) of mBuffer
+    private int mLineStart;
+    private int mLineEnd;
+
+    // the fields of the current record, as [mFieldStarts[i], mFieldEnds[i]) of mFieldChars
+    private char[] mFieldChars = new char[1024];
+    private int mFieldCharsLength = 0;
+    private int[] mFieldStarts = new int[INITIAL_FIELDS];
+    private int[] mFieldEnds = new int[INITIAL_FIELDS];
+    private int mFieldCount = 0;
+
+    // like opencsv, not reset at the start of a line
+    private boolean mInField = false;
+
+    public CsvTokenizer(Reader reader) {
+        this(reader, DEFAULT_SEPARATOR, DEFAULT_QUOTE_CHARACTER, DEFAULT_ESCAPE_CHARACTER);
+    }
+
+    public CsvTokenizer(Reader reader, char separator, char quote, char escape) {
+        mReader = reader;
+        mSeparator = separator;
+        mQuote = quote;
+        mEscape = escape;
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return false once there are no more records
+     */
+    public boolean next() throws IOException {
+        mFieldCount = 0;
+        mFieldCharsLength = 0;
+        int fieldStart = 0;
+        boolean continuing = false;
+
+        while (readLine()) {
+            boolean inQuotes = continuing;
+            char[] line = mBuffer;
+            int end = mLineEnd;
+            for (int i = mLineStart; i < end; i++) {
+                char c = line[i];
+                if (c == mEscape) {
+                    if ((inQuotes || mInField) && i + 1 < end
+                            && (line[i + 1] == mQuote || line[i + 1] == mEscape)) {
+                        append(line[++i]);
+                    }
+                } else if (c == mQuote) {
+                    if ((inQuotes || mInField) && i + 1 < end && line[i + 1] == mQuote) {
+                        append(line[++i]);
+                    } else {
+                        inQuotes = !inQuotes;
+                        // the tricky case of an embedded quote in the middle: a,bc"d"ef,g
+                        if (i - mLineStart > 2 && line[i - 1] != mSeparator
+                                && i + 1 < end && line[i + 1] != mSeparator) {
+                            if (mFieldCharsLength > fieldStart
+                                    && isAllWhitespace(fieldStart, mFieldCharsLength)) {
+                                // discard white space leading up to quote
+                                mFieldCharsLength = fieldStart;
+                            } else {
+                                append(c);
+                            }
+                        }
+                    }
+                    mInField = !mInField;
+                } else if (c == mSeparator && !inQuotes) {
+                    endField(fieldStart);
+                    fieldStart = mFieldCharsLength;
+                    mInField = false;
+                } else {
+                    append(c);
+                    mInField = true;
+                }
+            }
+
+            if (inQuotes) {
+                // the quoted field goes on on the next line
+                append('\n');
+                continuing = true;
+            } else {
+                endField(fieldStart);
+                return true;
+            }
+        }
+
+        // the file ended inside quotes; opencsv drops the unfinished field
+        return mFieldCount > 0;
+    }
+
+    /**
+     * @return the number of fields in the current record
+     */
+    public int getFieldCount() {
+        return mFieldCount;
+    }
+
+    /**
+     * @return a field of the current record, or "" if the record is shorter than that
+     */
+    public String getField(int index) {
+        if (index >= mFieldCount) {
+            return "";
+        }
+        int start = mFieldStarts[index];
+        return new String(mFieldChars, start, mFieldEnds[index] - start);
+    }
+
+    /**
+     * @return the fields of the current record, e.g. the column headers
+     */
+    public String[] getFields() {
+        String[] fields = new String[mFieldCount];
+        for (int i = 0; i < mFieldCount; i++) {
+            fields[i] = getField(i);
+        }
+        return fields;
+    }
+
+    /**
+     * The same as {@link org.odk.collect.android.external.ExternalDataUtil#containsAnyData},
+     * without making the fields into Strings.
+     *
+     * @return whether any field of the current record has something other than whitespace
+     */
+    public boolean containsAnyData() {
+        for (int i = 0; i < mFieldCount; i++) {
+            for (int j = mFieldStarts[i]; j < mFieldEnds[i]; j++) {
+                // String.trim() only removes the characters up to ' '
+                if (mFieldChars[j] > ' ') {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    /**
+     * Finds the next line, the way BufferedReader.readLine() does.
+     *
+     * @return false at the end of the input
+     */
+    private boolean readLine() throws IOException {
+        int i = mBufferStart;
+        while (true) {
+            if (i == mBufferEnd) {
+                if (mEndOfInput) {
+                    if (i == mBufferStart) {
+                        return false;
+                    }
+                    // the last line has no line break
+                    mLineStart = mBufferStart;
+                    mLineEnd = i;
+                    mBufferStart = i;
+                    return true;
+                }
+                i = fill(i);
+                continue;
+            }
+
+            char c = mBuffer[i];
+            if (mSkipLineFeed) {
+                mSkipLineFeed = false;
+                if (c == '\n' && i == mBufferStart) {
+                    mBufferStart = ++i;
+                    continue;
+                }
+            }
+            if (c == '\n' || c == '\r') {
+                mLineStart = mBufferStart;
+                mLineEnd = i;
+                mBufferStart = i + 1;
+                mSkipLineFeed = c == '\r';
+                return true;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Reads more of the input, keeping the part of the line read so far.
+     *
+     * @return where position i of the buffer has moved to
+     */
+    private int fill(int i) throws IOException {
+        int kept = mBufferEnd - mBufferStart;
+        if (kept == mBuffer.length) {
+            // a line longer than the buffer
+            char[] larger = new char[mBuffer.length * 2];
+            System.arraycopy(mBuffer, mBufferStart, larger, 0, kept);
+            mBuffer = larger;
+        } else if (mBufferStart > 0) {
+            System.arraycopy(mBuffer, mBufferStart, mBuffer, 0, kept);
+        }
+        int moved = mBufferStart;
+        mBufferStart = 0;
+        mBufferEnd = kept;
+
+        int read = mReader.read(mBuffer, mBufferEnd, mBuffer.length - mBufferEnd);
+        if (read == -1) {
+            mEndOfInput = true;
+        } else {
+            mBufferEnd += read;
+        }
+        return i - moved;
+    }
+
+    private void append(char c) {
+        if (mFieldCharsLength == mFieldChars.length) {
+            char[] larger = new char[mFieldChars.length * 2];
+            System.arraycopy(mFieldChars, 0, larger, 0, mFieldCharsLength);
+            mFieldChars = larger;
+        }
+        mFieldChars[mFieldCharsLength++] = c;
+    }
+
+    private void endField(int fieldStart) {
+        if (mFieldCount == mFieldStarts.length) {
+            int[] largerStarts = new int[mFieldCount * 2];
+            int[] largerEnds = new int[mFieldCount * 2];
+            System.arraycopy(mFieldStarts, 0, largerStarts, 0, mFieldCount);
+            System.arraycopy(mFieldEnds, 0, largerEnds, 0, mFieldCount);
+            mFieldStarts = largerStarts;
+            mFieldEnds = largerEnds;
+        }
+        mFieldStarts[mFieldCount] = fieldStart;
+        mFieldEnds[mFieldCount] = mFieldCharsLength;
+        mFieldCount++;
+    }
+
+    private boolean isAllWhitespace(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(mFieldChars[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
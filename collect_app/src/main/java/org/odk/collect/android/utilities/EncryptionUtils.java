@@ -32,15 +32,17 @@ import org.odk.collect.android.logic.FormController.InstanceMetadata;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
-import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -53,6 +55,12 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -97,6 +105,18 @@ public class EncryptionUtils {
     private static final String NEW_LINE = "\n";
     private static final String ENCRYPTION_PROVIDER = "BC";
 
+    private static final int ENCRYPT_BUFFER_SIZE = 64 * 1024;
+
+    // attachments are encrypted in parallel; each one streams through its own small buffer
+    private static final ThreadPoolExecutor sEncryptExecutor;
+
+    static {
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+        sEncryptExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        sEncryptExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private EncryptionUtils() {
     }
 
@@ -198,11 +218,6 @@ public class EncryptionUtils {
             elementSignatureSource.append(value).append("\n");
         }
 
-        public void appendFileSignatureSource(File file) {
-            String md5Hash = FileUtils.getMd5Hash(file);
-            appendElementSignatureSource(file.getName() + "::" + md5Hash);
-        }
-
         public String getBase64EncryptedElementSignature() {
             // Step 0: construct the text of the elements in elementSignatureSource (done)
             // 		Where...
@@ -445,43 +460,36 @@ public class EncryptionUtils {
                 pk, wrapper);
     }
 
-    private static void encryptFile(File file, EncryptedFormInformation formInfo)
-            throws IOException, EncryptionException {
+    /**
+     * Streams the file through the cipher into its .enc file and returns the md5 hash of the
+     * plaintext, which is computed as the file is read so that it is only read once.
+     */
+    private static String encryptFile(File file, Cipher c) throws EncryptionException {
         File encryptedFile = new File(file.getParentFile(), file.getName()
                 + ".enc");
 
-        if (encryptedFile.exists() && !encryptedFile.delete()) {
-            throw new IOException("Cannot overwrite " + encryptedFile.getAbsolutePath()
-                    + ". Perhaps the file is locked?");
-        }
-
-        // add elementSignatureSource for this file...
-        formInfo.appendFileSignatureSource(file);
-
-        RandomAccessFile randomAccessFile = null;
-        CipherOutputStream cipherOutputStream = null;
+        InputStream fin = null;
+        FileOutputStream fos = null;
         try {
-            Cipher c = formInfo.getCipher();
-
-            randomAccessFile = new RandomAccessFile(encryptedFile, "rws");
-            ByteArrayOutputStream encryptedData = new ByteArrayOutputStream();
-            cipherOutputStream = new CipherOutputStream(encryptedData, c);
-            InputStream fin = new FileInputStream(file);
-            byte[] buffer = new byte[2048];
-            int len = fin.read(buffer);
-            while (len != -1) {
-                cipherOutputStream.write(buffer, 0, len);
-                len = fin.read(buffer);
+            if (encryptedFile.exists() && !encryptedFile.delete()) {
+                throw new IOException("Cannot overwrite " + encryptedFile.getAbsolutePath()
+                        + ". Perhaps the file is locked?");
             }
-            fin.close();
-            cipherOutputStream.flush();
-            cipherOutputStream.close();
 
-            randomAccessFile.write(encryptedData.toByteArray());
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            fin = new DigestInputStream(new FileInputStream(file), md);
+            fos = new FileOutputStream(encryptedFile);
+            CipherOutputStream cipherOutputStream = new CipherOutputStream(
+                    new BufferedOutputStream(fos, ENCRYPT_BUFFER_SIZE), c);
+            IOUtils.copy(fin, cipherOutputStream);
+            // writes the final block and flushes the buffer, but leaves fos open to sync it
+            cipherOutputStream.close();
+            fos.getFD().sync();
 
             Log.i(t,
                     "Encrpyted:" + file.getName() + " -> "
                             + encryptedFile.getName());
+            return toMd5String(md.digest());
         } catch (Exception e) {
             String msg = "Error encrypting: " + file.getName() + " -> "
                     + encryptedFile.getName();
@@ -489,12 +497,21 @@ public class EncryptionUtils {
             e.printStackTrace();
             throw new EncryptionException(msg, e);
         } finally {
-            IOUtils.closeQuietly(cipherOutputStream);
+            IOUtils.closeQuietly(fin);
+            IOUtils.closeQuietly(fos);
+        }
+    }
 
-            if (randomAccessFile != null) {
-                randomAccessFile.close();
-            }
+    /**
+     * Same zero-padded format as {@link FileUtils#getMd5Hash(File)}.
+     */
+    private static String toMd5String(byte[] messageDigest) {
+        BigInteger number = new BigInteger(1, messageDigest);
+        String md5 = number.toString(16);
+        while (md5.length() < 32) {
+            md5 = "0" + md5;
         }
+        return md5;
     }
 
     public static boolean deletePlaintextFiles(File instanceXml) {
@@ -552,13 +569,49 @@ public class EncryptionUtils {
                 filesToProcess.add(f);
             }
         }
-        // encrypt here...
-        for (File f : filesToProcess) {
-            encryptFile(f, formInfo);
-        }
-
         // encrypt the submission.xml as the last file...
-        encryptFile(submissionXml, formInfo);
+        List<File> filesToEncrypt = new ArrayList<File>(filesToProcess);
+        filesToEncrypt.add(submissionXml);
+
+        // The IVs are derived from the seed in the order of the manifest, so hand out the
+        // ciphers here, in that order, before encrypting the files in parallel.
+        List<Future<String>> md5Hashes = new ArrayList<Future<String>>();
+        try {
+            for (final File f : filesToEncrypt) {
+                final Cipher c = formInfo.getCipher();
+                md5Hashes.add(sEncryptExecutor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws EncryptionException {
+                        return encryptFile(f, c);
+                    }
+                }));
+            }
+
+            // ...and add their signatures in that same order
+            for (int i = 0; i < filesToEncrypt.size(); i++) {
+                String md5Hash = md5Hashes.get(i).get();
+                formInfo.appendElementSignatureSource(
+                        filesToEncrypt.get(i).getName() + "::" + md5Hash);
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof EncryptionException) {
+                throw (EncryptionException) cause;
+            }
+            throw new EncryptionException(cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EncryptionException("Interrupted while encrypting the submission", e);
+        } catch (GeneralSecurityException e) {
+            String msg = "Unable to create the cipher";
+            Log.e(t, msg, e);
+            throw new EncryptionException(msg, e);
+        } finally {
+            // don't leave anything running if one of the files failed
+            for (Future<String> md5Hash : md5Hashes) {
+                md5Hash.cancel(false);
+            }
+        }
 
         return filesToProcess;
     }
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import android.content.ComponentCallbacks2;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.odk.collect.android.application.Collect;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Process-wide, memory-bounded LRU of pristine {@link FormDef} templates, keyed by the md5 hash
+ * of the form definition file.
+ *
+ * FormDef has no deep copy, so each template is held in its serialized form and every
+ * {@link #get(String)} hands out a fresh, independent FormDef rebuilt from memory. Only a cold
+ * open has to go to the .formdef file (or the XML) on the sdcard.
+ */
+public class FormDefCache {
+    private static final String t = "FormDefCache";
+
+    // .formdef footer: template length (8 bytes), CRC32 of the template (8 bytes), magic (4 bytes)
+    private static final int FOOTER_SIZE = 20;
+    private static final int FOOTER_MAGIC = 0x4f444b46; // "ODKF"
+
+    // fraction of the per-app heap that serialized templates may occupy
+    private static final int HEAP_FRACTION = 8;
+
+    private static final int SERIALIZE_BUFFER_SIZE = 64 * 1024;
+
+    private static FormDefCache singleton = null;
+
+    private final LruCache<String, byte[]> mTemplates;
+    private int mHits = 0;
+    private int mMisses = 0;
+
+    FormDefCache(int maxBytes) {
+        mTemplates = new LruCache<String, byte[]>(maxBytes) {
+            @Override
+            protected int sizeOf(String formHash, byte[] serialized) {
+                return serialized.length;
+            }
+        };
+    }
+
+    public static synchronized FormDefCache getInstance() {
+        if (singleton == null) {
+            long maxBytes = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+            singleton = new FormDefCache((int) Math.min(maxBytes, Integer.MAX_VALUE));
+        }
+        return singleton;
+    }
+
+    /**
+     * @return a new copy of the cached template, or null if the form is not in memory.
+     */
+    public FormDef get(String formHash) {
+        byte[] serialized = mTemplates.get(formHash);
+        if (serialized == null) {
+            logStats("miss", formHash);
+            return null;
+        }
+
+        FormDef fd = deserialize(serialized);
+        if (fd == null) {
+            // should never happen, but don't keep handing out a broken template
+            mTemplates.remove(formHash);
+            logStats("miss", formHash);
+            return null;
+        }
+        logStats("hit", formHash);
+        return fd;
+    }
+
+    /**
+     * Caches a template that is already in its serialized form (e.g. the bytes of a .formdef).
+     */
+    public void put(String formHash, byte[] serialized) {
+        if (formHash != null && serialized != null) {
+            mTemplates.put(formHash, serialized);
+        }
+    }
+
+    /**
+     * Caches a freshly parsed template. Must be called before the FormDef is initialized or
+     * filled in, otherwise the cached copy is no longer pristine.
+     *
+     * @return the serialized template, so that callers can also write it to disk
+     */
+    public byte[] put(String formHash, FormDef fd) throws IOException {
+        byte[] serialized = serialize(fd);
+        put(formHash, serialized);
+        return serialized;
+    }
+
+    public void remove(String formHash) {
+        mTemplates.remove(formHash);
+    }
+
+    /**
+     * Releases memory according to the level passed to
+     * {@link android.app.Application#onTrimMemory(int)}.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            Log.i(t, "Evicting all templates (trim level " + level + ")");
+            mTemplates.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            Log.i(t, "Evicting half of the templates (trim level " + level + ")");
+            mTemplates.trimToSize(mTemplates.size() / 2);
+        }
+    }
+
+    public void clear() {
+        mTemplates.evictAll();
+    }
+
+    private synchronized void logStats(String outcome, String formHash) {
+        if ("hit".equals(outcome)) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        Log.i(t, "Template " + outcome + " for " + formHash + " (hits: " + mHits + ", misses: "
+                + mMisses + ", cached: " + mTemplates.size() / 1024 + " KB)");
+    }
+
+    /**
+     * Rebuilds a {@link FormDef} from its serialized form.
+     *
+     * @return the FormDef, or null if the bytes could not be deserialized
+     */
+    public static FormDef deserialize(byte[] serialized) {
+        DataInputStream dis = null;
+        try {
+            FormDef fd = new FormDef();
+            dis = new DataInputStream(new ByteArrayInputStream(serialized));
+            fd.readExternal(dis, ExtUtil.defaultPrototypes());
+            return fd;
+        } catch (Exception e) {
+            Log.e(t, "Unable to deserialize FormDef", e);
+            return null;
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    Log.e(t, e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    public static byte[] serialize(FormDef fd) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(SERIALIZE_BUFFER_SIZE);
+        DataOutputStream dos = new DataOutputStream(bos);
+        fd.writeExternal(dos);
+        dos.flush();
+        dos.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * @return the .formdef file holding the serialized template of the form with this md5 hash
+     */
+    public static File getFormDefFile(String formHash) {
+        return new File(Collect.CACHE_PATH + File.separator + formHash + ".formdef");
+    }
+
+    /**
+     * Writes a serialized template to its .formdef file, followed by a footer holding the length
+     * and CRC32 of the template. The bytes go to a temporary file first and are renamed into
+     * place, so that a form load never sees a partially written file even if the background
+     * precompiler and a load are writing the same template at the same time.
+     */
+    public static void writeFormDefFile(File formDef, byte[] serialized) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(serialized, 0, serialized.length);
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        footer.putLong(serialized.length).putLong(crc.getValue()).putInt(FOOTER_MAGIC);
+
+        File temp = File.createTempFile(formDef.getName(), ".tmp", formDef.getParentFile());
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(temp);
+            fos.write(serialized);
+            fos.write(footer.array());
+            fos.flush();
+            // on disk before the rename, so a crash can't leave a truncated file under the name
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            if (!temp.renameTo(formDef)) {
+                throw new IOException("Unable to rename " + temp.getAbsolutePath() + " to "
+                        + formDef.getAbsolutePath());
+            }
+        } finally {
+            IOUtils.closeQuietly(fos);
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads a template written by {@link #writeFormDefFile(File, byte[])} straight into the array
+     * it is deserialized from. The footer is checked before anything is returned, so a truncated
+     * or corrupt file is rejected up front rather than halfway through deserializing it.
+     *
+     * @return the serialized template, or null if the file is missing, truncated or corrupt
+     */
+    public static byte[] readFormDefFile(File formDef) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(formDef, "r");
+            long size = raf.length();
+            if (size < FOOTER_SIZE || size - FOOTER_SIZE > Integer.MAX_VALUE) {
+                Log.w(t, formDef.getName() + " has an invalid size: " + size);
+                return null;
+            }
+
+            int length = (int) (size - FOOTER_SIZE);
+            raf.seek(length);
+            long storedLength = raf.readLong();
+            long storedCrc = raf.readLong();
+            int magic = raf.readInt();
+            if (magic != FOOTER_MAGIC || storedLength != length) {
+                Log.w(t, formDef.getName() + " is truncated or has no footer");
+                return null;
+            }
+
+            byte[] serialized = new byte[length];
+            raf.seek(0);
+            raf.readFully(serialized);
+
+            CRC32 crc = new CRC32();
+            crc.update(serialized, 0, length);
+            if (crc.getValue() != storedCrc) {
+                Log.w(t, formDef.getName() + " failed its checksum");
+                return null;
+            }
+            return serialized;
+        } catch (IOException e) {
+            Log.e(t, "Unable to read " + formDef.getAbsolutePath(), e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(raf);
+        }
+    }
+}
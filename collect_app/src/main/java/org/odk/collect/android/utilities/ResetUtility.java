@@ -22,7 +22,10 @@ import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.FormsDao;
 import org.odk.collect.android.dao.InstancesDao;
+import org.odk.collect.android.database.FileFingerprintStore;
+import org.odk.collect.android.database.ItemsetCache;
 import org.odk.collect.android.database.ItemsetDbAdapter;
+import org.odk.collect.android.database.SharedDataSetStore;
 import org.odk.collect.android.preferences.AdminPreferencesActivity;
 import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
 
@@ -107,10 +110,17 @@ public class ResetUtility {
 
     private void resetForms() {
         new FormsDao().deleteFormsDatabase();
+        FileFingerprintStore.getInstance().clear();
+        ItemsetCache.getInstance().clear();
 
+        // the shared connection would keep the deleted file open
+        ItemsetDbAdapter.closeDatabase();
         File itemsetDbFile = new File(Collect.METADATA_PATH + File.separator + ItemsetDbAdapter.DATABASE_NAME);
 
-        if (deleteFolderContents(Collect.FORMS_PATH) && (!itemsetDbFile.exists() || itemsetDbFile.delete())) {
+        boolean deletedDataSets = SharedDataSetStore.getInstance().clear();
+
+        if (deleteFolderContents(Collect.FORMS_PATH) && (!itemsetDbFile.exists() || itemsetDbFile.delete())
+                && deletedDataSets) {
             mFailedResetActions.remove(mFailedResetActions.indexOf(ResetAction.RESET_FORMS));
         }
     }
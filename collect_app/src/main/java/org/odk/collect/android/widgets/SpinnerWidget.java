@@ -38,6 +38,7 @@ import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.external.ExternalDataUtil;
 
+import java.util.AbstractList;
 import java.util.List;
 
 /**
@@ -50,7 +51,7 @@ import java.util.List;
 public class SpinnerWidget extends QuestionWidget {
     List<SelectChoice> mItems;
     Spinner spinner;
-    String[] choices;
+    List<String> choices;
     private static final int BROWN = 0xFF936931;
 
 
@@ -67,11 +68,21 @@ public class SpinnerWidget extends QuestionWidget {
         }
 
         spinner = new Spinner(context);
-        choices = new String[mItems.size() + 1];
-        for (int i = 0; i < mItems.size(); i++) {
-            choices[i] = prompt.getSelectChoiceText(mItems.get(i));
-        }
-        choices[mItems.size()] = getContext().getString(R.string.select_one);
+        // the labels are only looked up as they are shown, since the choices of a search() may
+        // be read from the dataset as they are needed
+        final String selectOne = getContext().getString(R.string.select_one);
+        choices = new AbstractList<String>() {
+            @Override
+            public String get(int location) {
+                return location == mItems.size() ? selectOne
+                        : mPrompt.getSelectChoiceText(mItems.get(location));
+            }
+
+            @Override
+            public int size() {
+                return mItems.size() + 1;
+            }
+        };
 
         // The spinner requires a custom adapter. It is defined below
         SpinnerAdapter adapter =
@@ -159,13 +170,13 @@ public class SpinnerWidget extends QuestionWidget {
     // Defines how to display the select answers
     private class SpinnerAdapter extends ArrayAdapter<String> {
         Context context;
-        String[] items = new String[]{};
+        List<String> items;
         int textUnit;
         float textSize;
 
 
         public SpinnerAdapter(final Context context, final int textViewResourceId,
-                final String[] objects, int textUnit, float textSize) {
+                final List<String> objects, int textUnit, float textSize) {
             super(context, textViewResourceId, objects);
             this.items = objects;
             this.context = context;
@@ -186,7 +197,7 @@ public class SpinnerWidget extends QuestionWidget {
             TextView tv = (TextView) convertView.findViewById(android.R.id.text1);
             tv.setTextSize(textUnit, textSize);
             tv.setPadding(10, 10, 10, 10); // Are these values OK?
-            if (position == items.length - 1) {
+            if (position == items.size() - 1) {
                 tv.setText(parent.getContext().getString(R.string.clear_answer));
                 tv.setTextColor(BROWN);
                 tv.setTypeface(null, Typeface.NORMAL);
@@ -194,7 +205,7 @@ public class SpinnerWidget extends QuestionWidget {
                     tv.setBackgroundColor(Color.LTGRAY);
                 }
             } else {
-                tv.setText(items[position]);
+                tv.setText(items.get(position));
                 tv.setTextColor(Color.BLACK);
                 tv.setTypeface(null, (spinner.getSelectedItemPosition() == position)
                         ? Typeface.BOLD : Typeface.NORMAL);
@@ -211,11 +222,11 @@ public class SpinnerWidget extends QuestionWidget {
             }
 
             TextView tv = (TextView) convertView.findViewById(android.R.id.text1);
-            tv.setText(items[position]);
+            tv.setText(items.get(position));
             tv.setTextSize(textUnit, textSize);
             tv.setTextColor(Color.BLACK);
             tv.setTypeface(null, Typeface.BOLD);
-            if (position == items.length - 1) {
+            if (position == items.size() - 1) {
                 tv.setTextColor(BROWN);
                 tv.setTypeface(null, Typeface.NORMAL);
             }
@@ -3,6 +3,8 @@ package org.odk.collect.android;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.odk.collect.android.activities.MainActivityTest;
+import org.odk.collect.android.external.handler.ExternalDataSearchTypeTest;
+import org.odk.collect.android.utilities.CsvTokenizerTest;
 import org.odk.collect.android.utilities.PermissionsTest;
 import org.odk.collect.android.utilities.TextUtilsTest;
 
@@ -13,6 +15,8 @@ import org.odk.collect.android.utilities.TextUtilsTest;
 @Suite.SuiteClasses({
         //Name of tests which are going to be run by suite
         MainActivityTest.class,
+        ExternalDataSearchTypeTest.class,
+        CsvTokenizerTest.class,
         PermissionsTest.class,
         TextUtilsTest.class
 })
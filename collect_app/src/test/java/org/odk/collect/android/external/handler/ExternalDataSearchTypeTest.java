@@ -0,0 +1,62 @@
+package org.odk.collect.android.external.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.BuildConfig;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml",
+        packageName = "org.odk.collect")
+public class ExternalDataSearchTypeTest {
+
+    private static final List<String> NAME = Collections.singletonList("c_name");
+
+    @Test
+    public void startsWith_KeepsFirstWordAndPrefixesLast() {
+        assertEquals("c_name:\"New Yo*\"",
+                ExternalDataSearchType.STARTS.constructMatchExpression(NAME, "New Yo"));
+    }
+
+    @Test
+    public void contains_DropsWordCutOffAtTheStart() {
+        assertEquals("c_name:\"Yor*\"",
+                ExternalDataSearchType.CONTAINS.constructMatchExpression(NAME, "ew Yor"));
+        assertNull(ExternalDataSearchType.CONTAINS.constructMatchExpression(NAME, "ew"));
+    }
+
+    @Test
+    public void contains_KeepsWholeWordsAfterASeparator() {
+        assertEquals("c_name:\"York\"",
+                ExternalDataSearchType.CONTAINS.constructMatchExpression(NAME, " York "));
+    }
+
+    @Test
+    public void endsWith_NeedsNoPrefix() {
+        assertEquals("c_name:\"York\"",
+                ExternalDataSearchType.ENDS.constructMatchExpression(NAME, "ew York"));
+    }
+
+    @Test
+    public void matches_SearchesEveryQueriedColumn() {
+        assertEquals("c_name:\"New York\" OR c_label:\"New York\"",
+                ExternalDataSearchType.MATCHES.constructMatchExpression(
+                        Arrays.asList("c_name", "c_label"), "New York"));
+    }
+
+    @Test
+    public void likeWildcards_AreNotRouted() {
+        assertNull(ExternalDataSearchType.STARTS.constructMatchExpression(NAME, "New%"));
+        assertNull(ExternalDataSearchType.STARTS.constructMatchExpression(NAME, "New_York"));
+        assertNull(ExternalDataSearchType.STARTS.constructMatchExpression(NAME, ""));
+    }
+}
@@ -0,0 +1,111 @@
+package org.odk.collect.android.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.xform.parse.XFormParseException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.BuildConfig;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml",
+        packageName = "org.odk.collect")
+public class FormLoaderTaskTest {
+
+    // the shape of a household roster with long notes
+    private static final int MEMBERS = 15;
+    private static final int NOTES_LENGTH = 4096;
+
+    // the instance is written to take this share of the free heap. Its notes aren't Latin-1, so
+    // the parsed tree takes about as much memory as the file; reading the whole file into memory
+    // before parsing it no longer fits.
+    private static final double HEAP_SHARE = 0.6;
+
+    // filling a larger heap would take too long; build.gradle runs this class with a small one
+    private static final long MAX_HEAP = 512L * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * Fails with an OutOfMemoryError if reopening an instance needs much more memory than the
+     * tree itself.
+     */
+    @Test
+    public void restoreSavedRoot_RestoresLargeInstance() throws IOException {
+        Runtime runtime = Runtime.getRuntime();
+        assumeTrue(runtime.maxMemory() <= MAX_HEAP);
+        System.gc();
+        long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+
+        File instance = tempFolder.newFile("roster.xml");
+        int households = writeRosterInstance(instance, (long) (freeHeap * HEAP_SHARE));
+
+        TreeElement root = FormLoaderTask.restoreSavedRoot(instance);
+
+        assertEquals("data", root.getName());
+        assertEquals(households, root.getChildMultiplicity("household"));
+
+        TreeElement lastHousehold = root.getChild("household", households - 1);
+        assertEquals(MEMBERS, lastHousehold.getChildMultiplicity("member"));
+        TreeElement lastMember = lastHousehold.getChild("member", MEMBERS - 1);
+        assertEquals("Member " + (households - 1) + "-" + (MEMBERS - 1),
+                lastMember.getChild("name", 0).getValue().getDisplayText());
+    }
+
+    @Test(expected = XFormParseException.class)
+    public void restoreSavedRoot_FailsOnMissingInstance() {
+        FormLoaderTask.restoreSavedRoot(new File(tempFolder.getRoot(), "missing.xml"));
+    }
+
+    /**
+     * @return the number of households written
+     */
+    private int writeRosterInstance(File file, long size) throws IOException {
+        // Greek letters, two bytes each in UTF-8
+        StringBuilder notes = new StringBuilder();
+        for (int i = 0; i < NOTES_LENGTH; i++) {
+            notes.append((char) ('\u03b1' + i % 24));
+        }
+
+        int households = 0;
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.write("<?xml version='1.0' ?><data id=\"roster\">");
+            // the notes make up nearly all of the file
+            for (long written = 0; written < size; written += MEMBERS * NOTES_LENGTH * 2) {
+                int h = households++;
+                writer.write("<household><hh_id>" + h + "</hh_id>");
+                for (int m = 0; m < MEMBERS; m++) {
+                    writer.write("<member>"
+                            + "<name>Member " + h + "-" + m + "</name>"
+                            + "<age>" + (m * 3 + 1) + "</age>"
+                            + "<sex>" + (m % 2 == 0 ? "female" : "male") + "</sex>"
+                            + "<relationship>child</relationship>"
+                            + "<notes>" + notes + "</notes>"
+                            + "</member>");
+                }
+                writer.write("</household>");
+            }
+            writer.write("<meta><instanceID>uuid:roster</instanceID></meta></data>");
+        } finally {
+            writer.close();
+        }
+        return households;
+    }
+}
@@ -0,0 +1,129 @@
+package org.odk.collect.android.utilities;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link CsvTokenizer} splits csvs exactly the way opencsv 2.3 does, which forms
+ * already depend on.
+ */
+public class CsvTokenizerTest {
+
+    private static final char NO_ESCAPE = '\0';
+
+    private static final String[] SAMPLES = {
+            "",
+            "\n",
+            "a",
+            "a,b,c",
+            "a,b,c\n1,2,3\n",
+            "a,b,c\r\n1,2,3\r\n",
+            "a,b\r1,2\r",
+            "a,b\n\n\n1,2",
+            "a,,c,\n,,,\n",
+            "\"quoted\",\"with, comma\",\"with \"\"quotes\"\"\"\n",
+            "\"multi\nline\",x\n\"and\r\nagain\",y",
+            "a,bc\"d\"ef,g\n",
+            "a,  \"padded\",b\nx,   \"q\" ,y\n",
+            "\"\",b\na,b\n\"\",c\n",
+            "a,b,\n\"\",c\n",
+            "back\\slash,\"esc\\\"aped\",\\\\\n",
+            "\"unterminated,a\nb,c",
+            "a,\"unterminated",
+            "\"unterminated",
+            "  leading, trailing  ,\t\n",
+            "\u00e9t\u00e9,\u4e2d\u6587,\ud83d\ude00\n",
+            "x\"y\"\n\"a\"b\"c\",d\n",
+    };
+
+    @Test
+    public void matchesOpencsvWithoutEscape() throws IOException {
+        for (String sample : SAMPLES) {
+            assertSameRecords(sample, NO_ESCAPE);
+        }
+    }
+
+    @Test
+    public void matchesOpencsvWithDefaultEscape() throws IOException {
+        for (String sample : SAMPLES) {
+            assertSameRecords(sample, CsvTokenizer.DEFAULT_ESCAPE_CHARACTER);
+        }
+    }
+
+    @Test
+    public void matchesOpencsvOnRandomInput() throws IOException {
+        char[] alphabet = {'a', 'b', ' ', ',', '"', '\\', '\n', '\r', '\t'};
+        Random random = new Random(894);
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder sample = new StringBuilder();
+            int length = random.nextInt(40);
+            for (int j = 0; j < length; j++) {
+                sample.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            assertSameRecords(sample.toString(), NO_ESCAPE);
+            assertSameRecords(sample.toString(), CsvTokenizer.DEFAULT_ESCAPE_CHARACTER);
+        }
+    }
+
+    @Test
+    public void readsLinesLongerThanTheBuffer() throws IOException {
+        StringBuilder sample = new StringBuilder("\"");
+        for (int i = 0; i < 100000; i++) {
+            sample.append("field ").append(i).append(i % 1000 == 0 ? "\n" : ",");
+        }
+        sample.append("\",last\r\nnext");
+        assertSameRecords(sample.toString(), NO_ESCAPE);
+    }
+
+    @Test
+    public void shortRecordsReadAsEmptyStrings() throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer(new StringReader("a,b,c\n1\n"));
+        assertTrue(tokenizer.next());
+        assertTrue(tokenizer.next());
+        assertEquals(1, tokenizer.getFieldCount());
+        assertEquals("1", tokenizer.getField(0));
+        assertEquals("", tokenizer.getField(2));
+        assertFalse(tokenizer.next());
+    }
+
+    @Test
+    public void blankRecordsContainNoData() throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer(new StringReader(" , \t,\"\"\n ,x\n"));
+        assertTrue(tokenizer.next());
+        assertFalse(tokenizer.containsAnyData());
+        assertTrue(tokenizer.next());
+        assertTrue(tokenizer.containsAnyData());
+    }
+
+    private static void assertSameRecords(String csv, char escape) throws IOException {
+        CSVReader reader = new CSVReader(new StringReader(csv), CsvTokenizer.DEFAULT_SEPARATOR,
+                CsvTokenizer.DEFAULT_QUOTE_CHARACTER, escape);
+        List<List<String>> expected = new ArrayList<List<String>>();
+        String[] row;
+        while ((row = reader.readNext()) != null) {
+            expected.add(Arrays.asList(row));
+        }
+
+        CsvTokenizer tokenizer = new CsvTokenizer(new StringReader(csv),
+                CsvTokenizer.DEFAULT_SEPARATOR, CsvTokenizer.DEFAULT_QUOTE_CHARACTER, escape);
+        List<List<String>> actual = new ArrayList<List<String>>();
+        while (tokenizer.next()) {
+            actual.add(Arrays.asList(tokenizer.getFields()));
+        }
+
+        assertEquals("Records of " + csv.replace("\n", "\\n").replace("\r", "\\r"),
+                expected, actual);
+    }
+}